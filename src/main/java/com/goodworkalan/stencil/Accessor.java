@@ -0,0 +1,457 @@
+package com.goodworkalan.stencil;
+
+import static com.goodworkalan.ilk.Types.getActualType;
+import static com.goodworkalan.ilk.Types.getRawClass;
+
+import java.lang.reflect.AccessibleObject;
+import java.lang.reflect.Field;
+import java.lang.reflect.GenericArrayType;
+import java.lang.reflect.Method;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.lang.reflect.TypeVariable;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.goodworkalan.danger.Danger;
+import com.goodworkalan.ilk.Ilk;
+import com.goodworkalan.permeate.ParseException;
+import com.goodworkalan.permeate.Part;
+import com.goodworkalan.permeate.Path;
+import com.goodworkalan.reflective.getter.Getter;
+import com.goodworkalan.reflective.getter.Getters;
+import com.goodworkalan.utility.Primitives;
+
+/**
+ * An object path resolved against a context type. The getters, fields and map
+ * lookups along the path and the actual type of each step are determined once
+ * when the accessor is created, so that evaluating the path against an object
+ * only invokes the getters.
+ * <p>
+ * The accessor also determines once how the object at the end of the path is
+ * tested as a condition and, if it can be iterated, the type of the items, so
+ * that no type reasoning is performed when a stencil is emitted.
+ * 
+ * @author Alan Gutierrez
+ */
+class Accessor {
+    /** How the object at the end of a path is tested as a condition. */
+    private enum Condition {
+        /** The object is a boolean. */
+        BOOLEAN,
+        
+        /** The object is a collection that is true if it is not empty. */
+        COLLECTION,
+        
+        /** The object is an iterator that is true if it has more items. */
+        ITERATOR,
+        
+        /** The object is true if it is not null. */
+        OBJECT
+    }
+
+    /**
+     * The generic types whose first type parameter is the type of the items
+     * of an iteration, with null for a type the runtime does not provide.
+     */
+    private final static Class<?>[] ITERABLES = {
+        Iterable.class, Iterator.class, Actualizer.BASE_STREAM, Actualizer.SPLITERATOR
+    };
+
+    /** The context type against which the path was resolved. */
+    public final Type context;
+
+    /** The actual type of the object at the end of the path. */
+    public final Type type;
+    
+    /** The steps along the path. */
+    private final Step[] steps;
+
+    /**
+     * The classes of the context, of the members read along the path and of
+     * the object at the end of the path.
+     */
+    public final Set<Class<?>> classes;
+    
+    /** How the object at the end of the path is tested as a condition. */
+    private final Condition condition;
+    
+    /**
+     * The type collection for the items if the object at the end of the path
+     * can be iterated, otherwise null.
+     */
+    private final Actualizer<?> actualizer;
+    
+    /**
+     * The boxed super type token of the items used as the context of an
+     * iteration if the object at the end of the path can be iterated,
+     * otherwise null.
+     */
+    public final Ilk.Box items;
+
+    /**
+     * Resolve the given path expression against the given context type.
+     * 
+     * @param context
+     *            The context type.
+     * @param expression
+     *            The path expression.
+     * @param line
+     *            The line number where the path was read.
+     * @param uri
+     *            The URI from which the path was read.
+     * @exception Danger
+     *                If the path cannot be parsed or if a part of the path
+     *                does not exist in the type.
+     */
+    public Accessor(Type context, String expression, int line, URI uri) {
+        Path path = null;
+        if (expression.length() != 0) {
+            try {
+                path = new Path(expression, false);
+            } catch (ParseException e) {
+                throw new Danger(e, StencilFactory.class, "Invalid object path [%s] at line [%d] of [%s].", expression, line, uri);
+            }
+        }
+        List<Step> steps = new ArrayList<Step>();
+        Set<Class<?>> classes = new HashSet<Class<?>>();
+        Type type = context;
+        classes.add(getRawClass(type));
+        for (int i = 0; path != null && i < path.size(); i++) {
+            Part part = path.get(i);
+            if (PathEvaluator.class.isAssignableFrom(getRawClass(type))) {
+                type = ((ParameterizedType) type).getActualTypeArguments()[0];
+                steps.add(new Evaluate(type, path));
+                break;
+            } else if (Map.class.isAssignableFrom(getRawClass(type))) {
+                type = ((ParameterizedType) type).getActualTypeArguments()[1];
+                steps.add(new Lookup(type, part.getName()));
+            } else {
+                Map<String, Getter> getters = Getters.getGetters(getRawClass(type));
+                Getter getter = getters.get(part.getName());
+                if (getter == null) {
+                    throw new Danger(StencilFactory.class, "invalidObjectPath", expression, line, uri);
+                }
+                type = getActualType(getter.getGenericType(), type, new LinkedList<Map<TypeVariable<?>, Type>>());
+                if (getter.getMember() instanceof Method) {
+                    Method method = (Method) getter.getMember();
+                    classes.add(method.getDeclaringClass());
+                    steps.add(new Invoke(type, part.getName(), method));
+                } else {
+                    Field field = (Field) getter.getMember();
+                    classes.add(field.getDeclaringClass());
+                    steps.add(new Read(type, part.getName(), field));
+                }
+            }
+        }
+        this.context = context;
+        this.type = type;
+        this.steps = steps.toArray(new Step[steps.size()]);
+        Class<?> rawClass = getRawClass(type);
+        classes.add(rawClass);
+        this.classes = Collections.unmodifiableSet(classes);
+        if (Primitives.box(rawClass).equals(Boolean.class)) {
+            this.condition = Condition.BOOLEAN;
+        } else if (Collection.class.isAssignableFrom(rawClass)) {
+            this.condition = Condition.COLLECTION;
+        } else if (Iterator.class.isAssignableFrom(rawClass)) {
+            this.condition = Condition.ITERATOR;
+        } else {
+            this.condition = Condition.OBJECT;
+        }
+        Type itemType = getItemType(type, rawClass);
+        if (itemType != null) {
+            this.actualizer = new Actualizer<Object>(itemType);
+            this.items = new Ilk.Box(actualizer.actual().key.type);
+        } else {
+            this.actualizer = null;
+            this.items = null;
+        }
+    }
+
+    /**
+     * Get the type of the items of the given type if it is an iterable, an
+     * iterator, an array, a stream or a spliterator, otherwise null. The items
+     * of an array of primitives are their boxed type.
+     * 
+     * @param type
+     *            The type.
+     * @param rawClass
+     *            The raw class of the type.
+     * @return The type of the items or null.
+     */
+    private static Type getItemType(Type type, Class<?> rawClass) {
+        if (rawClass.isArray()) {
+            if (type instanceof GenericArrayType) {
+                return ((GenericArrayType) type).getGenericComponentType();
+            }
+            return Primitives.box(rawClass.getComponentType());
+        }
+        for (Class<?> iterable : ITERABLES) {
+            if (iterable != null && iterable.isAssignableFrom(rawClass)) {
+                return getActualType(iterable.getTypeParameters()[0], type, new LinkedList<Map<TypeVariable<?>, Type>>());
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Get the type collection for the items if the object at the end of the
+     * path can be iterated, otherwise null.
+     * 
+     * @param <T>
+     *            The type variable of the type collection.
+     * @return The type collection for the items or null.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> Actualizer<T> getActualizer() {
+        return (Actualizer<T>) actualizer;
+    }
+
+    /**
+     * Test the given boxed object found at the end of the path as a condition.
+     * A boolean is its own value, a collection is true if it is not empty, an
+     * iterator is true if it has more items and any other object is true if
+     * it is not null.
+     * 
+     * @param value
+     *            The boxed object or null.
+     * @return The value of the condition.
+     */
+    public boolean isTrue(Ilk.Box value) {
+        if (value == null) {
+            return false;
+        }
+        switch (condition) {
+        case BOOLEAN:
+            return (Boolean) value.object;
+        case COLLECTION:
+            return !((Collection<?>) value.object).isEmpty();
+        case ITERATOR:
+            return ((Iterator<?>) value.object).hasNext();
+        }
+        return true;
+    }
+
+    /**
+     * Get a boxed instance of the object found at the end of the path starting
+     * from the given boxed object, or null if the given object or any object
+     * along the path is null.
+     * 
+     * @param object
+     *            The boxed object.
+     * @param line
+     *            The line number where the path was read.
+     * @param uri
+     *            The URI from which the path was read.
+     * @return The boxed object at the end of the path or null.
+     */
+    public Ilk.Box get(Ilk.Box object, int line, URI uri) {
+        for (int i = 0; object != null && i < steps.length; i++) {
+            object = steps[i].get(object, line, uri);
+        }
+        return object;
+    }
+
+    /**
+     * A single step along a path.
+     */
+    private static abstract class Step {
+        /** The super type token of the object obtained by this step. */
+        private final Ilk<Object> ilk;
+
+        /**
+         * Create a step that obtains an object of the given type.
+         * 
+         * @param type
+         *            The actual type of the object obtained.
+         */
+        protected Step(Type type) {
+            this.ilk = new Actualizer<Object>(type).actual();
+        }
+
+        /**
+         * Box the given value obtained by this step, returning null if the
+         * value is null.
+         * 
+         * @param value
+         *            The value.
+         * @return The boxed value or null.
+         */
+        protected Ilk.Box box(Object value) {
+            return value == null ? null : ilk.box(value);
+        }
+
+        /**
+         * Get the next boxed object along the path from the given boxed
+         * object.
+         * 
+         * @param object
+         *            The boxed object.
+         * @param line
+         *            The line number where the path was read.
+         * @param uri
+         *            The URI from which the path was read.
+         * @return The next boxed object or null.
+         */
+        public abstract Ilk.Box get(Ilk.Box object, int line, URI uri);
+    }
+
+    /**
+     * Make the given member accessible if the security manager allows it, so
+     * that public members of non-public classes can be read.
+     * 
+     * @param member
+     *            The member.
+     */
+    private static void accessible(AccessibleObject member) {
+        try {
+            member.setAccessible(true);
+        } catch (SecurityException e) {
+        }
+    }
+
+    /**
+     * A step that invokes a getter method.
+     */
+    private final static class Invoke extends Step {
+        /** The property name. */
+        private final String name;
+
+        /** The getter method. */
+        private final Method method;
+
+        /**
+         * Create a step that invokes the given getter method.
+         * 
+         * @param type
+         *            The actual type of the property.
+         * @param name
+         *            The property name.
+         * @param method
+         *            The getter method.
+         */
+        public Invoke(Type type, String name, Method method) {
+            super(type);
+            this.name = name;
+            this.method = method;
+            accessible(method);
+        }
+
+        @Override
+        public Ilk.Box get(Ilk.Box object, int line, URI uri) {
+            try {
+                return box(method.invoke(object.object));
+            } catch (Exception e) {
+                throw new Danger(e, StencilFactory.class, "cannotInvokeGet", name, object.object.getClass(), line, uri);
+            }
+        }
+    }
+
+    /**
+     * A step that reads a public field.
+     */
+    private final static class Read extends Step {
+        /** The property name. */
+        private final String name;
+
+        /** The field. */
+        private final Field field;
+
+        /**
+         * Create a step that reads the given field.
+         * 
+         * @param type
+         *            The actual type of the field.
+         * @param name
+         *            The property name.
+         * @param field
+         *            The field.
+         */
+        public Read(Type type, String name, Field field) {
+            super(type);
+            this.name = name;
+            this.field = field;
+            accessible(field);
+        }
+
+        @Override
+        public Ilk.Box get(Ilk.Box object, int line, URI uri) {
+            try {
+                return box(field.get(object.object));
+            } catch (Exception e) {
+                throw new Danger(e, StencilFactory.class, "cannotInvokeGet", name, object.object.getClass(), line, uri);
+            }
+        }
+    }
+
+    /**
+     * A step that gets a value from a map.
+     */
+    private final static class Lookup extends Step {
+        /** The map key. */
+        private final String key;
+        
+        /**
+         * Create a step that gets the value for the given key from a map.
+         * 
+         * @param type
+         *            The actual type of the map values.
+         * @param key
+         *            The map key.
+         */
+        public Lookup(Type type, String key) {
+            super(type);
+            this.key = key;
+        }
+
+        @Override
+        public Ilk.Box get(Ilk.Box object, int line, URI uri) {
+            try {
+                return box(((Map<?, ?>) object.object).get(key));
+            } catch (Exception e) {
+                throw new Danger(e, StencilFactory.class, "cannotInvokeGetOnMap", line, uri);
+            }
+        }
+    }
+
+    /**
+     * A step that hands the entire path to a path evaluator.
+     */
+    private final static class Evaluate extends Step {
+        /** The path. */
+        private final Path path;
+
+        /**
+         * Create a step that evaluates the given path with a path evaluator.
+         * 
+         * @param type
+         *            The actual type of the evaluator result.
+         * @param path
+         *            The path.
+         */
+        public Evaluate(Type type, Path path) {
+            super(type);
+            this.path = path;
+        }
+
+        @Override
+        public Ilk.Box get(Ilk.Box object, int line, URI uri) {
+            Object value;
+            try {
+                value = ((PathEvaluator<?>) object.object).evaluate(object, path);
+            } catch (RuntimeException e) {
+                throw new Danger(e, StencilFactory.class, "Cannot invoke get on PathEvaluator at line [%d] of [%s].", line, uri);
+            }
+            return box(value);
+        }
+    }
+}
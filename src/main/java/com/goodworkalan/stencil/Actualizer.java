@@ -1,53 +1,232 @@
 package com.goodworkalan.stencil;
 
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
 import java.lang.reflect.Type;
-import java.util.Collection;
+import java.net.URI;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
 
+import com.goodworkalan.danger.Danger;
 import com.goodworkalan.ilk.Ilk;
 
 /**
  * A type collection for the item type of a collection iteration.
- * 
+ * <p>
+ * The items are pulled one at a time from an iterable, an iterator, an
+ * array, a stream or a spliterator, so that an iteration never copies the
+ * items into a collection. Streams and spliterators are found by reflection
+ * so that they are supported when the runtime provides them. A stream is
+ * closed by the level that iterates it when the level is removed.
+ *
  * @author Alan Gutierrez
  *
  * @param <T> Type type
  */
 class Actualizer<T> {
+    /** The base interface of streams or null if the runtime has no streams. */
+    final static Class<?> BASE_STREAM = forName("java.util.stream.BaseStream");
+
+    /** The spliterator interface or null if the runtime has no spliterators. */
+    final static Class<?> SPLITERATOR = forName("java.util.Spliterator");
+
+    /** The method that gets the iterator of a stream. */
+    private final static Method STREAM_ITERATOR = getMethod(BASE_STREAM, "iterator");
+
+    /** The method that closes a stream. */
+    private final static Method STREAM_CLOSE = getMethod(BASE_STREAM, "close");
+
+    /** The method that creates an iterator for a spliterator. */
+    private final static Method SPLITERATOR_ITERATOR = getMethod(forName("java.util.Spliterators"), "iterator", SPLITERATOR);
+
     /** The super type token of the collection item. */
-    private Ilk<T> ilk;
+    private final Ilk<T> actual;
 
-    /** The type of collection item. */
-    private final Type type;
+    /** The super type token of an iterable of the item. */
+    private final Ilk<Iterable<T>> iterable;
+
+    /** The super type token of an iterator of the item. */
+    private final Ilk<Iterator<T>> iterator;
 
     /**
      * Create a type collection using the given type.
-     * 
+     *
      * @param type
      *            The type.
      */
     public Actualizer(Type type) {
-        this.ilk = new Ilk<T>(){};
-        this.type = type;
+        this.actual = new Ilk<T>(){}.assign(Actualizer.class.getTypeParameters()[0], type);
+        this.iterable = new Ilk<Iterable<T>>(){}.assign(Actualizer.class.getTypeParameters()[0], type);
+        this.iterator = new Ilk<Iterator<T>>(){}.assign(Actualizer.class.getTypeParameters()[0], type);
     }
-    
+
     /**
-     * Create a super type token with the actual type value assigned to the type
+     * Get the super type token with the actual type value assigned to the type
      * variable.
-     * 
+     *
      * @return An actual super type token.
      */
     public Ilk<T> actual() {
-        return ilk.assign(Actualizer.class.getTypeParameters()[0], type);
+        return actual;
     }
-    
+
     /**
-     * Cast the given box to a collection of this item type.
-     * 
+     * Get an iterator over the items of the given boxed iterable, iterator,
+     * array, stream or spliterator. An iterator is returned as is, so the
+     * items it has already returned are not visited. A stream is not closed
+     * by its iterator, it must be closed with {@link #close(Object)}.
+     *
      * @param box
      *            The box.
-     * @return The contents of the box cast to a collection of this item type.
+     * @param line
+     *            The line number of the iteration.
+     * @param uri
+     *            The URI of the stencil.
+     * @return An iterator over the items of this item type.
+     */
+    @SuppressWarnings("unchecked")
+    public Iterator<T> iterator(Ilk.Box box, int line, URI uri) {
+        Object object = box.object;
+        if (object instanceof Iterable<?>) {
+            return box.cast(iterable).iterator();
+        }
+        if (object instanceof Iterator<?>) {
+            return box.cast(iterator);
+        }
+        if (object.getClass().isArray()) {
+            return new ArrayIterator<T>(object);
+        }
+        try {
+            if (BASE_STREAM != null && BASE_STREAM.isInstance(object)) {
+                return (Iterator<T>) STREAM_ITERATOR.invoke(object);
+            }
+            if (SPLITERATOR != null && SPLITERATOR.isInstance(object)) {
+                return (Iterator<T>) SPLITERATOR_ITERATOR.invoke(null, object);
+            }
+        } catch (InvocationTargetException e) {
+            throw new Danger(e.getCause(), StencilFactory.class, "cannotIterate", object.getClass(), line, uri);
+        } catch (IllegalAccessException e) {
+            throw new Danger(e, StencilFactory.class, "cannotIterate", object.getClass(), line, uri);
+        }
+        throw new Danger(StencilFactory.class, "cannotIterate", object.getClass(), line, uri);
+    }
+
+    /**
+     * Get whether the given object is a stream that must be closed when its
+     * iteration ends.
+     * 
+     * @param object
+     *            The object.
+     * @return True if the object is a stream.
      */
-    public Collection<T> collection(Ilk.Box box) {
-        return box.cast(new Ilk<Collection<T>>(){}.assign(Actualizer.class.getTypeParameters()[0], type));
+    public static boolean isStream(Object object) {
+        return BASE_STREAM != null && BASE_STREAM.isInstance(object);
+    }
+
+    /**
+     * Close the given stream, running its close handlers.
+     * 
+     * @param stream
+     *            The stream.
+     */
+    public static void close(Object stream) {
+        try {
+            STREAM_CLOSE.invoke(stream);
+        } catch (InvocationTargetException e) {
+            throw new Danger(e.getCause(), StencilFactory.class, "cannotClose", stream.getClass());
+        } catch (IllegalAccessException e) {
+            throw new Danger(e, StencilFactory.class, "cannotClose", stream.getClass());
+        }
+    }
+
+    /**
+     * Load the class with the given name from the bootstrap class path,
+     * returning null if the runtime does not provide it.
+     *
+     * @param className
+     *            The class name.
+     * @return The class or null.
+     */
+    private static Class<?> forName(String className) {
+        try {
+            return Class.forName(className);
+        } catch (ClassNotFoundException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Get the public method of the given class with the given name and
+     * parameter types, returning null if the class or any parameter type is
+     * null.
+     *
+     * @param type
+     *            The class or null.
+     * @param name
+     *            The method name.
+     * @param parameterTypes
+     *            The parameter types.
+     * @return The method or null.
+     */
+    private static Method getMethod(Class<?> type, String name, Class<?>...parameterTypes) {
+        if (type == null) {
+            return null;
+        }
+        for (Class<?> parameterType : parameterTypes) {
+            if (parameterType == null) {
+                return null;
+            }
+        }
+        try {
+            return type.getMethod(name, parameterTypes);
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    /**
+     * An iterator over the elements of an array of objects or primitives,
+     * boxing primitive elements as they are returned.
+     *
+     * @param <T>
+     *            The element type.
+     */
+    private final static class ArrayIterator<T> implements Iterator<T> {
+        /** The array. */
+        private final Object array;
+
+        /** The length of the array. */
+        private final int length;
+
+        /** The index of the next element. */
+        private int index;
+
+        /**
+         * Create an iterator over the elements of the given array.
+         *
+         * @param array
+         *            The array.
+         */
+        public ArrayIterator(Object array) {
+            this.array = array;
+            this.length = Array.getLength(array);
+        }
+
+        public boolean hasNext() {
+            return index < length;
+        }
+
+        @SuppressWarnings("unchecked")
+        public T next() {
+            if (index == length) {
+                throw new NoSuchElementException();
+            }
+            return (T) Array.get(array, index++);
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
     }
 }
@@ -0,0 +1,77 @@
+package com.goodworkalan.stencil;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of direct byte buffers of a single size used to buffer the output of
+ * renders to an output stream or channel, so that the buffers are allocated
+ * once and shared by the renders in flight.
+ *
+ * @author Alan Gutierrez
+ */
+class BufferPool {
+    /** The greatest number of idle buffers kept by the pool. */
+    private final static int MAXIMUM_IDLE = 256;
+
+    /** The size of each buffer. */
+    private final int bufferSize;
+
+    /** The idle buffers. */
+    private final Queue<ByteBuffer> buffers = new ConcurrentLinkedQueue<ByteBuffer>();
+
+    /** The number of idle buffers. */
+    private final AtomicInteger idle = new AtomicInteger();
+
+    /**
+     * Create a pool of buffers of the given size.
+     *
+     * @param bufferSize
+     *            The size of each buffer.
+     */
+    public BufferPool(int bufferSize) {
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * Get the size of each buffer.
+     *
+     * @return The buffer size.
+     */
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * Take an empty buffer from the pool, allocating a new buffer if the pool
+     * is empty.
+     *
+     * @return An empty buffer.
+     */
+    public ByteBuffer acquire() {
+        ByteBuffer buffer = buffers.poll();
+        if (buffer == null) {
+            return ByteBuffer.allocateDirect(bufferSize);
+        }
+        idle.decrementAndGet();
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Return the given buffer to the pool, discarding it if the pool already
+     * holds as many idle buffers as it will keep.
+     *
+     * @param buffer
+     *            The buffer.
+     */
+    public void release(ByteBuffer buffer) {
+        if (idle.incrementAndGet() <= MAXIMUM_IDLE) {
+            buffers.offer(buffer);
+        } else {
+            idle.decrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,352 @@
+package com.goodworkalan.stencil;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.goodworkalan.danger.Danger;
+
+/**
+ * An output that writes bytes to a channel. The static text of a page is
+ * written from the bytes encoded once for its source, so that only the values
+ * emitted by the render are encoded as they are written.
+ * <p>
+ * Bytes are buffered in a queue of buffers taken from a buffer pool. Long
+ * runs of static text are queued as views of the encoded source instead of
+ * being copied. The queue is written with a single gathering write when the
+ * flush policy calls for it, when the maximum number of pooled buffers for the
+ * render are full, and at the end of the render.
+ * <p>
+ * Values are encoded one at a time with an encoder that is reset after each
+ * value, and are written between runs of text encoded in advance, so the
+ * character set must encode a string the same way wherever it appears in the
+ * output. A character set that writes a byte order mark at the start of its
+ * output, such as <code>UTF-16</code>, is rejected.
+ *
+ * @author Alan Gutierrez
+ */
+class ByteOutput extends Output {
+    /** The least length of a run of encoded text queued without a copy. */
+    private final static int WRAP = 512;
+
+    /** Whether each character set used so far encodes without a prefix. */
+    private final static ConcurrentMap<Charset, Boolean> UNPREFIXED = new ConcurrentHashMap<Charset, Boolean>();
+
+    /** The channel. */
+    private final WritableByteChannel channel;
+
+    /** The output stream written by the channel to flush, or null. */
+    private final OutputStream stream;
+
+    /** The character set. */
+    private final Charset charset;
+
+    /** The encoder of the values emitted by the render. */
+    private final CharsetEncoder encoder;
+
+    /** The pool of buffers. */
+    private final BufferPool pool;
+
+    /** The greatest number of pooled buffers held by this output. */
+    private final int bufferCount;
+
+    /** When the queued bytes are written. */
+    private final FlushPolicy flushPolicy;
+
+    /** The queue of pooled buffers and views of encoded text to write. */
+    private ByteBuffer[] queue = new ByteBuffer[8];
+
+    /** Whether each buffer in the queue belongs to the pool. */
+    private boolean[] pooled = new boolean[8];
+
+    /** The number of buffers in the queue. */
+    private int size;
+
+    /** The number of pooled buffers in the queue. */
+    private int pooledCount;
+
+    /** The pooled buffer being filled or null. */
+    private ByteBuffer buffer;
+
+    /**
+     * Create an output that writes to the given channel using the given
+     * character set.
+     *
+     * @param channel
+     *            The channel.
+     * @param stream
+     *            The output stream written by the channel to flush when the
+     *            output is flushed, or null.
+     * @param charset
+     *            The character set.
+     * @param pool
+     *            The pool of buffers.
+     * @param bufferCount
+     *            The greatest number of pooled buffers to hold.
+     * @param flushPolicy
+     *            When the buffered bytes are written.
+     * @exception Danger
+     *                If the character set writes a byte order mark.
+     */
+    public ByteOutput(WritableByteChannel channel, OutputStream stream, Charset charset, BufferPool pool, int bufferCount, FlushPolicy flushPolicy) {
+        if (!isUnprefixed(charset)) {
+            throw new Danger(StencilFactory.class, "prefixedCharset", charset);
+        }
+        this.channel = channel;
+        this.stream = stream;
+        this.charset = charset;
+        this.encoder = Source.Encoding.newEncoder(charset);
+        this.pool = pool;
+        this.bufferCount = bufferCount;
+        this.flushPolicy = flushPolicy;
+    }
+
+    /**
+     * Determine whether the given character set encodes two characters as
+     * twice the bytes of one character, so that it writes no byte order mark
+     * or other prefix at the start of its output.
+     *
+     * @param charset
+     *            The character set.
+     * @return True if the character set writes no prefix.
+     */
+    private static boolean isUnprefixed(Charset charset) {
+        Boolean unprefixed = UNPREFIXED.get(charset);
+        if (unprefixed == null) {
+            int one = charset.encode("a").remaining();
+            int two = charset.encode("aa").remaining();
+            unprefixed = two == one * 2;
+            UNPREFIXED.put(charset, unprefixed);
+        }
+        return unprefixed;
+    }
+
+    /**
+     * Write the bytes of the text of the given source between the given
+     * offsets.
+     *
+     * @param source
+     *            The source.
+     * @param start
+     *            The offset of the first character to write.
+     * @param end
+     *            The offset after the last character to write.
+     * @throws IOException
+     *             For any I/O error.
+     */
+    @Override
+    public void write(Source source, int start, int end) throws IOException {
+        Source.Encoding encoding = source.getEncoding(charset);
+        int offset = encoding.offset(start);
+        int length = encoding.offset(end) - offset;
+        count += end - start;
+        if (length >= WRAP) {
+            enqueue(ByteBuffer.wrap(encoding.bytes, offset, length), false);
+            buffer = null;
+        } else {
+            while (length != 0) {
+                ByteBuffer buffer = getBuffer();
+                int count = Math.min(buffer.remaining(), length);
+                buffer.put(encoding.bytes, offset, count);
+                offset += count;
+                length -= count;
+            }
+        }
+    }
+
+    /**
+     * Encode and write the given characters.
+     *
+     * @param characters
+     *            The characters.
+     * @param offset
+     *            The offset of the first character to write.
+     * @param length
+     *            The number of characters to write.
+     * @throws IOException
+     *             For any I/O error.
+     */
+    @Override
+    public void write(char[] characters, int offset, int length) throws IOException {
+        encode(CharBuffer.wrap(characters, offset, length));
+    }
+
+    /**
+     * Encode and write a portion of the given string.
+     *
+     * @param string
+     *            The string.
+     * @param offset
+     *            The offset of the first character to write.
+     * @param length
+     *            The number of characters to write.
+     * @throws IOException
+     *             For any I/O error.
+     */
+    @Override
+    public void write(String string, int offset, int length) throws IOException {
+        encode(CharBuffer.wrap(string, offset, offset + length));
+    }
+
+    /**
+     * Encode and write the given character sequence.
+     *
+     * @param sequence
+     *            The character sequence.
+     * @return This output.
+     * @throws IOException
+     *             For any I/O error.
+     */
+    @Override
+    public Writer append(CharSequence sequence) throws IOException {
+        encode(CharBuffer.wrap(sequence == null ? "null" : sequence));
+        return this;
+    }
+
+    /**
+     * Encode the given characters into the pooled buffers, moving to the next
+     * buffer whenever a buffer fills.
+     *
+     * @param characters
+     *            The characters.
+     * @throws IOException
+     *             For any I/O error.
+     */
+    private void encode(CharBuffer characters) throws IOException {
+        count += characters.remaining();
+        while (encoder.encode(characters, getBuffer(), true).isOverflow()) {
+            buffer = null;
+        }
+        while (encoder.flush(getBuffer()).isOverflow()) {
+            buffer = null;
+        }
+        encoder.reset();
+    }
+
+    /**
+     * Get the pooled buffer being filled, taking a new buffer from the pool if
+     * there is none or it is full. If the flush policy writes each buffer as
+     * it fills, or this output holds as many pooled buffers as it may, the
+     * queue is written before a new buffer is taken.
+     *
+     * @return A buffer with space remaining.
+     * @throws IOException
+     *             For any I/O error.
+     */
+    private ByteBuffer getBuffer() throws IOException {
+        if (buffer == null || !buffer.hasRemaining()) {
+            if (pooledCount != 0 && (flushPolicy == FlushPolicy.FULL || pooledCount == bufferCount)) {
+                drain();
+            }
+            buffer = pool.acquire();
+            enqueue(buffer, true);
+        }
+        return buffer;
+    }
+
+    /**
+     * Add the given buffer to the queue of buffers to write.
+     *
+     * @param buffer
+     *            The buffer.
+     * @param fromPool
+     *            Whether the buffer belongs to the pool.
+     */
+    private void enqueue(ByteBuffer buffer, boolean fromPool) {
+        if (size == queue.length) {
+            ByteBuffer[] expandedQueue = new ByteBuffer[size * 2];
+            System.arraycopy(queue, 0, expandedQueue, 0, size);
+            queue = expandedQueue;
+            boolean[] expandedPooled = new boolean[size * 2];
+            System.arraycopy(pooled, 0, expandedPooled, 0, size);
+            pooled = expandedPooled;
+        }
+        queue[size] = buffer;
+        pooled[size] = fromPool;
+        size++;
+        if (fromPool) {
+            pooledCount++;
+        }
+    }
+
+    /**
+     * Write the queued buffers to the channel, with a single gathering write
+     * if the channel supports it, and return the pooled buffers to the pool.
+     *
+     * @throws IOException
+     *             For any I/O error.
+     */
+    private void drain() throws IOException {
+        for (int i = 0; i < size; i++) {
+            if (pooled[i]) {
+                queue[i].flip();
+            }
+        }
+        if (channel instanceof GatheringByteChannel) {
+            GatheringByteChannel gathering = (GatheringByteChannel) channel;
+            int i = 0;
+            while (i < size) {
+                gathering.write(queue, i, size - i);
+                while (i < size && !queue[i].hasRemaining()) {
+                    i++;
+                }
+            }
+        } else {
+            for (int i = 0; i < size; i++) {
+                while (queue[i].hasRemaining()) {
+                    channel.write(queue[i]);
+                }
+            }
+        }
+        for (int i = 0; i < size; i++) {
+            if (pooled[i]) {
+                pool.release(queue[i]);
+            }
+            queue[i] = null;
+        }
+        size = 0;
+        pooledCount = 0;
+        buffer = null;
+    }
+
+    /**
+     * Write the queued bytes to the channel and flush the output stream
+     * written by the channel, if any, unless the flush policy holds the bytes
+     * until the end of the render.
+     *
+     * @throws IOException
+     *             For any I/O error.
+     */
+    @Override
+    public void flush() throws IOException {
+        if (flushPolicy != FlushPolicy.END) {
+            drain();
+            if (stream != null) {
+                stream.flush();
+            }
+        }
+    }
+
+    /**
+     * Write the queued bytes to the channel at the end of the render and
+     * flush the output stream written by the channel, if any.
+     *
+     * @throws IOException
+     *             For any I/O error.
+     */
+    @Override
+    public void finish() throws IOException {
+        drain();
+        if (stream != null) {
+            stream.flush();
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package com.goodworkalan.stencil;
+
+/**
+ * A snapshot of the statistics of the cache of compiled stencils kept by a
+ * <code>StencilFactory</code>.
+ *
+ * @author Alan Gutierrez
+ */
+public class CacheStatistics {
+    /** The count of cached stencils. */
+    private final int size;
+
+    /** The count of characters held by the cached stencils. */
+    private final long weight;
+
+    /** The count of requests for a stencil that was cached. */
+    private final long hitCount;
+
+    /** The count of requests for a stencil that was not cached. */
+    private final long missCount;
+
+    /** The count of stencils loaded. */
+    private final long loadCount;
+
+    /** The total time spent loading stencils in nanoseconds. */
+    private final long totalLoadTime;
+
+    /** The count of stencils evicted to keep the cache below its maximum weight. */
+    private final long evictionCount;
+
+    /**
+     * Create a snapshot of cache statistics.
+     * 
+     * @param size
+     *            The count of cached stencils.
+     * @param weight
+     *            The count of characters held by the cached stencils.
+     * @param hitCount
+     *            The count of requests for a stencil that was cached.
+     * @param missCount
+     *            The count of requests for a stencil that was not cached.
+     * @param loadCount
+     *            The count of stencils loaded.
+     * @param totalLoadTime
+     *            The total time spent loading stencils in nanoseconds.
+     * @param evictionCount
+     *            The count of stencils evicted to keep the cache below its
+     *            maximum weight.
+     */
+    public CacheStatistics(int size, long weight, long hitCount, long missCount, long loadCount, long totalLoadTime, long evictionCount) {
+        this.size = size;
+        this.weight = weight;
+        this.hitCount = hitCount;
+        this.missCount = missCount;
+        this.loadCount = loadCount;
+        this.totalLoadTime = totalLoadTime;
+        this.evictionCount = evictionCount;
+    }
+
+    /**
+     * Get the count of cached stencils.
+     * 
+     * @return The count of cached stencils.
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * Get the count of characters held by the cached stencils, counting text
+     * shared by several stencils once.
+     * 
+     * @return The weight of the cache.
+     */
+    public long getWeight() {
+        return weight;
+    }
+
+    /**
+     * Get the count of requests for a stencil that was cached.
+     * 
+     * @return The hit count.
+     */
+    public long getHitCount() {
+        return hitCount;
+    }
+
+    /**
+     * Get the count of requests for a stencil that was not cached.
+     * 
+     * @return The miss count.
+     */
+    public long getMissCount() {
+        return missCount;
+    }
+
+    /**
+     * Get the count of stencils loaded.
+     * 
+     * @return The load count.
+     */
+    public long getLoadCount() {
+        return loadCount;
+    }
+
+    /**
+     * Get the total time spent loading stencils in nanoseconds.
+     * 
+     * @return The total load time.
+     */
+    public long getTotalLoadTime() {
+        return totalLoadTime;
+    }
+
+    /**
+     * Get the count of stencils evicted to keep the cache below its maximum
+     * weight.
+     * 
+     * @return The eviction count.
+     */
+    public long getEvictionCount() {
+        return evictionCount;
+    }
+}
@@ -1,5 +1,7 @@
 package com.goodworkalan.stencil;
 
+import java.io.IOException;
+import java.io.Writer;
 import java.util.Map;
 
 /**
@@ -8,37 +10,145 @@ import java.util.Map;
  * @author Alan Gutierrez
  */
 public class CharCodeEscaper extends Escaper {
-    /** The map of character code to escape sequences. */
-    private final Map<Integer, String> escapes;
+    /**
+     * The escape sequences indexed by character code, as long as the greatest
+     * character code that is escaped.
+     */
+    private final String[] escapes;
     
     /**
      * Create a character code lookup escaper using the given map of escapes.
+     * Character codes outside of the range of a Java character are ignored,
+     * since they can never match a character of the escaped string.
      * 
      * @param escapes
      *            The map of escapes.
      */
     public CharCodeEscaper(Map<Integer, String> escapes) {
-        this.escapes = escapes;
+        int length = 0;
+        for (Integer code : escapes.keySet()) {
+            if (code >= 0 && code <= Character.MAX_VALUE && code >= length) {
+                length = code + 1;
+            }
+        }
+        this.escapes = new String[length];
+        for (Map.Entry<Integer, String> entry : escapes.entrySet()) {
+            int code = entry.getKey();
+            if (code >= 0 && code < length) {
+                this.escapes[code] = entry.getValue();
+            }
+        }
     }
 
     /**
      * Escape the given string by replacing characters with escape sequences.
+     * If no character needs to be escaped, the given string is returned.
      * 
      * @param unescaped
      *            The string to escape.
      * @return The escaped string.
      */
     public CharSequence escape(CharSequence unescaped) {
-        StringBuilder escaped = new StringBuilder();
-        for (int i = 0, stop = unescaped.length(); i < stop; i++) {
+        int i = find(unescaped, 0);
+        if (i == unescaped.length()) {
+            return unescaped;
+        }
+        StringBuilder escaped = new StringBuilder(unescaped.length() + 16);
+        try {
+            escape(unescaped, i, escaped);
+        } catch (IOException e) {
+            // A string builder does not raise I/O exceptions.
+            throw new RuntimeException(e);
+        }
+        return escaped.toString();
+    }
+
+    /**
+     * Escape the given string by replacing characters with escape sequences,
+     * writing the runs of characters between the characters that are escaped
+     * to the given output in bulk.
+     * 
+     * @param unescaped
+     *            The string to escape.
+     * @param output
+     *            The output.
+     * @throws IOException
+     *             For any I/O error.
+     */
+    public void escape(CharSequence unescaped, Appendable output) throws IOException {
+        escape(unescaped, find(unescaped, 0), output);
+    }
+
+    /**
+     * Escape the given string starting with the character at the given index,
+     * which is the first character that needs to be escaped.
+     * 
+     * @param unescaped
+     *            The string to escape.
+     * @param i
+     *            The index of the first character to escape.
+     * @param output
+     *            The output.
+     * @throws IOException
+     *             For any I/O error.
+     */
+    private void escape(CharSequence unescaped, int i, Appendable output) throws IOException {
+        int start = 0;
+        int stop = unescaped.length();
+        while (i != stop) {
+            append(output, unescaped, start, i);
+            output.append(escapes[unescaped.charAt(i)]);
+            start = i + 1;
+            i = find(unescaped, start);
+        }
+        append(output, unescaped, start, stop);
+    }
+
+    /**
+     * Find the index of the first character at or after the given index that
+     * needs to be escaped, or the length of the string if there is none.
+     * 
+     * @param unescaped
+     *            The string to escape.
+     * @param i
+     *            The index to start searching from.
+     * @return The index of the next character to escape.
+     */
+    private int find(CharSequence unescaped, int i) {
+        String[] escapes = this.escapes;
+        int length = escapes.length;
+        for (int stop = unescaped.length(); i < stop; i++) {
             char ch = unescaped.charAt(i);
-            String sequence = escapes.get((int) ch);
-            if (sequence != null) {
-                escaped.append(sequence);
+            if (ch < length && escapes[ch] != null) {
+                return i;
+            }
+        }
+        return i;
+    }
+
+    /**
+     * Append the characters of the given string from the given start index up
+     * to the given end index to the output. Strings are written directly to a
+     * writer to avoid creating a substring.
+     * 
+     * @param output
+     *            The output.
+     * @param string
+     *            The string.
+     * @param start
+     *            The start index.
+     * @param end
+     *            The end index.
+     * @throws IOException
+     *             For any I/O error.
+     */
+    private static void append(Appendable output, CharSequence string, int start, int end) throws IOException {
+        if (start != end) {
+            if (output instanceof Writer && string instanceof String) {
+                ((Writer) output).write((String) string, start, end - start);
             } else {
-                escaped.append(ch);
+                output.append(string, start, end);
             }
         }
-        return escaped.toString();
     }
 }
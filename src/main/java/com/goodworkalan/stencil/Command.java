@@ -0,0 +1,96 @@
+package com.goodworkalan.stencil;
+
+/**
+ * A command parsed from a line of a Stencil document along with the text that
+ * surrounds it.
+ * 
+ * @author Alan Gutierrez
+ */
+class Command {
+    /** The offset of the text on the line before the command. */
+    public final int start;
+
+    /** The offset of the at sign that begins the command. */
+    public final int at;
+    
+    /** Whether the text before the command is entirely whitespace. */
+    public final boolean whitespace;
+
+    /** The command name. */
+    public final String name;
+    
+    /** The kind of command. */
+    public final Directive directive;
+    
+    /** The command payload or null if the command has no payload. */
+    public final String payload;
+    
+    /** The payload split on the arrow or null if there is no payload. */
+    public final String[] arguments;
+    
+    /** The offset of the remainder of the line after the command. */
+    public final int end;
+    
+    /** Whether the remainder of the line after the command is blank. */
+    public final boolean blank;
+    
+    /**
+     * The index of this command among the commands of the source, used to
+     * find the accessor and escaper a page has resolved for the command.
+     */
+    public int ordinal;
+
+    /**
+     * Create a command.
+     * 
+     * @param text
+     *            The page text.
+     * @param start
+     *            The offset of the text on the line before the command.
+     * @param at
+     *            The offset of the at sign that begins the command.
+     * @param nameEnd
+     *            The offset of the end of the command name.
+     * @param payloadStart
+     *            The offset of the payload or -1 if there is no payload.
+     * @param payloadEnd
+     *            The offset of the end of the payload or -1 if there is no
+     *            payload.
+     * @param end
+     *            The offset of the remainder of the line after the command.
+     * @param stop
+     *            The offset of the new line that terminates the line.
+     */
+    public Command(char[] text, int start, int at, int nameEnd, int payloadStart, int payloadEnd, int end, int stop) {
+        this.start = start;
+        this.at = at;
+        this.whitespace = Line.isWhitespace(text, start, at);
+        this.name = new String(text, at + 1, nameEnd - at - 1);
+        this.directive = Directive.forName(name);
+        this.payload = payloadStart == -1 ? null : new String(text, payloadStart, payloadEnd - payloadStart);
+        this.arguments = payload == null ? null : Lexer.split(payload);
+        this.end = end;
+        this.blank = isBlank(text, end, stop);
+    }
+
+    /**
+     * Determine if the characters between the given offsets would be empty if
+     * trimmed.
+     * 
+     * @param text
+     *            The page text.
+     * @param start
+     *            The start offset.
+     * @param end
+     *            The end offset.
+     * @return True if the characters are blank.
+     */
+    private static boolean isBlank(char[] text, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (text[i] > ' ') {
+                return false;
+            }
+        }
+        return true;
+    }
+}
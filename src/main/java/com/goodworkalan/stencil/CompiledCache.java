@@ -0,0 +1,478 @@
+package com.goodworkalan.stencil;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import com.goodworkalan.ilk.inject.Injector;
+
+/**
+ * The results of compiling stencils saved to a file so that they can be
+ * restored when the stencils are loaded by another process. For each page the
+ * file records the URI, a hash of the page content, whether the page was
+ * verified, the stencils the page defines, the resources the page depends on
+ * with a fingerprint of each, and the classes the page references with a hash
+ * of each class file. A page loaded with the same content is given the
+ * recorded stencils. It is marked as verified without running the static
+ * analysis again only if every imported page, escape table and class it was
+ * verified against is also unchanged.
+ * <p>
+ * A file is memory mapped and read in full when the cache is created. A cache
+ * can also be read from a URL, so that a cache written by a build can be read
+ * from an archive through the class loader.
+ *
+ * @author Alan Gutierrez
+ */
+class CompiledCache {
+    /** The magic number at the start of a compiled cache file. */
+    private final static int MAGIC = 0x5374656E;
+
+    /** The version of the compiled cache file format. */
+    private final static int VERSION = 2;
+
+    /** The recorded compilations by page URI. */
+    private final Map<URI, Compilation> compilations;
+
+    /**
+     * Read the compiled cache from the given file by memory mapping it.
+     *
+     * @param file
+     *            The file.
+     * @return The compiled cache.
+     * @throws IOException
+     *             For any I/O error or if the file is not a compiled cache.
+     */
+    public static CompiledCache read(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        MappedByteBuffer buffer;
+        try {
+            FileChannel channel = in.getChannel();
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            in.close();
+        }
+        return new CompiledCache(buffer, file.toString());
+    }
+
+    /**
+     * Read the compiled cache from the given URL, such as a resource bundled
+     * into an archive by a build and found through the class loader.
+     *
+     * @param url
+     *            The URL.
+     * @return The compiled cache.
+     * @throws IOException
+     *             For any I/O error or if the resource is not a compiled
+     *             cache.
+     */
+    public static CompiledCache read(URL url) throws IOException {
+        InputStream in = url.openStream();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                bytes.write(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+        return new CompiledCache(ByteBuffer.wrap(bytes.toByteArray()), url.toString());
+    }
+
+    /**
+     * Read the compiled cache from the given buffer. A buffer that is
+     * truncated or whose lengths and counts do not fit within it is reported
+     * as an I/O error.
+     *
+     * @param buffer
+     *            The buffer.
+     * @param source
+     *            The name of the source of the buffer for error messages.
+     * @throws IOException
+     *             If the buffer does not contain a compiled cache.
+     */
+    private CompiledCache(ByteBuffer buffer, String source) throws IOException {
+        try {
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                throw new IOException(source);
+            }
+            int count = getCount(buffer, source);
+            compilations = new HashMap<URI, Compilation>(count * 2);
+            for (int i = 0; i < count; i++) {
+                Compilation compilation = new Compilation();
+                URI uri = new URI(getString(buffer, source));
+                compilation.hash = getBytes(buffer, source);
+                compilation.verified = buffer.get() != 0;
+                int stencils = getCount(buffer, source);
+                compilation.names = new String[stencils];
+                compilation.positions = new int[stencils * 3];
+                for (int j = 0; j < stencils; j++) {
+                    compilation.names[j] = getString(buffer, source);
+                    compilation.positions[j * 3] = buffer.getInt();
+                    compilation.positions[j * 3 + 1] = buffer.getInt();
+                    compilation.positions[j * 3 + 2] = buffer.getInt();
+                }
+                int dependencies = getCount(buffer, source);
+                compilation.dependencies = new URI[dependencies];
+                compilation.tables = new boolean[dependencies];
+                compilation.fingerprints = new byte[dependencies][];
+                for (int j = 0; j < dependencies; j++) {
+                    compilation.dependencies[j] = new URI(getString(buffer, source));
+                    compilation.tables[j] = buffer.get() != 0;
+                    compilation.fingerprints[j] = getBytes(buffer, source);
+                }
+                int classes = getCount(buffer, source);
+                compilation.classes = new String[classes];
+                compilation.classHashes = new byte[classes][];
+                for (int j = 0; j < classes; j++) {
+                    compilation.classes[j] = getString(buffer, source);
+                    compilation.classHashes[j] = getBytes(buffer, source);
+                }
+                compilations.put(uri, compilation);
+            }
+        } catch (BufferUnderflowException e) {
+            throw (IOException) new IOException(source).initCause(e);
+        } catch (URISyntaxException e) {
+            throw (IOException) new IOException(source).initCause(e);
+        }
+    }
+
+    /**
+     * Restore the recorded compilation of the given page if the page has the
+     * same content as the page that was recorded, assigning the stencils it
+     * defines and the classes it references. If the page was verified when it
+     * was recorded, it is marked as verified when the fingerprint given by the
+     * stencil factory for each of its dependencies and the hash of each of its
+     * classes are the same as those recorded, otherwise it must be verified
+     * again.
+     *
+     * @param factory
+     *            The stencil factory that fingerprints the dependencies.
+     * @param injector
+     *            The injector used to load the imported pages.
+     * @param page
+     *            The page.
+     * @return The URIs of the resources the page depends on, or null if there
+     *         is no compilation recorded for the page content.
+     */
+    public URI[] restore(StencilFactory factory, Injector injector, Page page) {
+        Compilation compilation = compilations.get(page.uri);
+        if (compilation == null || !Arrays.equals(compilation.hash, hash(page))) {
+            return null;
+        }
+        Line[] lines = page.source.lines;
+        for (int i = 0; i < compilation.names.length; i++) {
+            int index = compilation.positions[i * 3];
+            if (index < 1 || index > lines.length) {
+                return null;
+            }
+        }
+        for (int i = 0; i < compilation.names.length; i++) {
+            int index = compilation.positions[i * 3];
+            int count = compilation.positions[i * 3 + 1];
+            int indent = compilation.positions[i * 3 + 2];
+            page.stencils.put(compilation.names[i], new Stencil(page, lines[index - 1], index, count, indent));
+        }
+        boolean current = compilation.verified;
+        ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+        for (int i = 0; i < compilation.classes.length; i++) {
+            Class<?> type;
+            try {
+                type = Class.forName(compilation.classes[i], false, classLoader);
+            } catch (ClassNotFoundException e) {
+                current = false;
+                continue;
+            }
+            page.addClass(type);
+            current = current && Arrays.equals(compilation.classHashes[i], hash(type));
+        }
+        for (int i = 0; current && i < compilation.dependencies.length; i++) {
+            byte[] fingerprint = factory.getFingerprint(injector, compilation.dependencies[i], compilation.tables[i]);
+            current = Arrays.equals(compilation.fingerprints[i], fingerprint);
+        }
+        page.verified = current;
+        return compilation.dependencies;
+    }
+
+    /**
+     * Write the compilation of each of the given pages to the given file. The
+     * file is written to a temporary file that then replaces the given file.
+     * A page is recorded as verified only if the stencil factory can
+     * fingerprint every one of its dependencies from its caches.
+     *
+     * @param file
+     *            The file.
+     * @param pages
+     *            The pages.
+     * @param factory
+     *            The stencil factory that fingerprints the dependencies.
+     * @throws IOException
+     *             For any I/O error.
+     */
+    public static void write(File file, Collection<Page> pages, StencilFactory factory) throws IOException {
+        File temporary = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(pages.size());
+            for (Page page : pages) {
+                Set<URI> dependencies = page.getDependencies();
+                URI[] uris = dependencies.toArray(new URI[dependencies.size()]);
+                boolean[] tables = new boolean[uris.length];
+                byte[][] fingerprints = new byte[uris.length][];
+                boolean verified = page.verified;
+                for (int i = 0; i < uris.length; i++) {
+                    tables[i] = factory.isEscapeTable(uris[i]);
+                    fingerprints[i] = factory.getFingerprint(null, uris[i], tables[i]);
+                    if (fingerprints[i] == null) {
+                        fingerprints[i] = new byte[0];
+                        verified = false;
+                    }
+                }
+                putString(out, page.uri.toString());
+                putBytes(out, hash(page));
+                out.writeByte(verified ? 1 : 0);
+                Map<String, Stencil> stencils = new HashMap<String, Stencil>(page.stencils);
+                out.writeInt(stencils.size());
+                for (Map.Entry<String, Stencil> entry : stencils.entrySet()) {
+                    putString(out, entry.getKey());
+                    out.writeInt(entry.getValue().index);
+                    out.writeInt(entry.getValue().count);
+                    out.writeInt(entry.getValue().indent);
+                }
+                out.writeInt(uris.length);
+                for (int i = 0; i < uris.length; i++) {
+                    putString(out, uris[i].toString());
+                    out.writeByte(tables[i] ? 1 : 0);
+                    putBytes(out, fingerprints[i]);
+                }
+                Set<Class<?>> classes = page.getClasses();
+                Class<?>[] types = classes.toArray(new Class<?>[classes.size()]);
+                out.writeInt(types.length);
+                for (Class<?> type : types) {
+                    putString(out, type.getName());
+                    putBytes(out, hash(type));
+                }
+            }
+        } finally {
+            out.close();
+        }
+        if (!temporary.renameTo(file)) {
+            file.delete();
+            if (!temporary.renameTo(file)) {
+                throw new IOException(file.toString());
+            }
+        }
+    }
+
+    /**
+     * Create a new SHA-1 message digest.
+     *
+     * @return A new message digest.
+     */
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to support SHA-1.
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Create a hash of the content of the given page.
+     *
+     * @param page
+     *            The page.
+     * @return The hash of the page content.
+     */
+    static byte[] hash(Page page) {
+        MessageDigest digest = newDigest();
+        digest.update(Charset.forName("UTF-8").encode(CharBuffer.wrap(page.source.text)));
+        return digest.digest();
+    }
+
+    /**
+     * Update the given digest with the UTF-8 encoding of the given string.
+     *
+     * @param digest
+     *            The digest.
+     * @param string
+     *            The string.
+     */
+    static void update(MessageDigest digest, String string) {
+        digest.update(Charset.forName("UTF-8").encode(string));
+    }
+
+    /**
+     * Create a hash of the class file of the given class. A class loaded by
+     * the bootstrap class loader, or whose class file cannot be read, has an
+     * empty hash, since it cannot change without the runtime changing.
+     *
+     * @param type
+     *            The class.
+     * @return The hash of the class file.
+     */
+    static byte[] hash(Class<?> type) {
+        ClassLoader classLoader = type.getClassLoader();
+        if (classLoader == null) {
+            return new byte[0];
+        }
+        URL url = classLoader.getResource(type.getName().replace('.', '/') + ".class");
+        if (url == null) {
+            return new byte[0];
+        }
+        MessageDigest digest = newDigest();
+        try {
+            InputStream in = url.openStream();
+            try {
+                byte[] buffer = new byte[8192];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    digest.update(buffer, 0, read);
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            return new byte[0];
+        }
+        return digest.digest();
+    }
+
+    /**
+     * Read a count from the given buffer, checking that it is not negative
+     * and that the buffer holds at least one byte for each counted item.
+     *
+     * @param buffer
+     *            The buffer.
+     * @param source
+     *            The name of the source of the buffer for error messages.
+     * @return The count.
+     * @throws IOException
+     *             If the count does not fit within the buffer.
+     */
+    private static int getCount(ByteBuffer buffer, String source) throws IOException {
+        int count = buffer.getInt();
+        if (count < 0 || count > buffer.remaining()) {
+            throw new IOException(source);
+        }
+        return count;
+    }
+
+    /**
+     * Read a length prefixed array of bytes from the given buffer.
+     *
+     * @param buffer
+     *            The buffer.
+     * @param source
+     *            The name of the source of the buffer for error messages.
+     * @return The bytes.
+     * @throws IOException
+     *             If the length does not fit within the buffer.
+     */
+    private static byte[] getBytes(ByteBuffer buffer, String source) throws IOException {
+        byte[] bytes = new byte[getCount(buffer, source)];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Read a length prefixed UTF-8 string from the given buffer.
+     *
+     * @param buffer
+     *            The buffer.
+     * @param source
+     *            The name of the source of the buffer for error messages.
+     * @return The string.
+     * @throws IOException
+     *             If the length does not fit within the buffer.
+     */
+    private static String getString(ByteBuffer buffer, String source) throws IOException {
+        return new String(getBytes(buffer, source), "UTF-8");
+    }
+
+    /**
+     * Write a length prefixed array of bytes to the given output.
+     *
+     * @param out
+     *            The output.
+     * @param bytes
+     *            The bytes.
+     * @throws IOException
+     *             For any I/O error.
+     */
+    private static void putBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Write a length prefixed UTF-8 string to the given output.
+     *
+     * @param out
+     *            The output.
+     * @param string
+     *            The string.
+     * @throws IOException
+     *             For any I/O error.
+     */
+    private static void putString(DataOutputStream out, String string) throws IOException {
+        putBytes(out, string.getBytes("UTF-8"));
+    }
+
+    /**
+     * The recorded compilation of a page.
+     */
+    private final static class Compilation {
+        /** The hash of the page content. */
+        public byte[] hash;
+
+        /** Whether the page was verified. */
+        public boolean verified;
+
+        /** The names of the stencils defined by the page. */
+        public String[] names;
+
+        /** The index, command count and indent of each stencil in turn. */
+        public int[] positions;
+
+        /** The URIs of the resources the page depends on. */
+        public URI[] dependencies;
+
+        /** Whether each dependency in turn is an escape table or a page. */
+        public boolean[] tables;
+
+        /** The fingerprint of each dependency in turn. */
+        public byte[][] fingerprints;
+
+        /** The names of the classes the page references. */
+        public String[] classes;
+
+        /** The hash of the class file of each class in turn. */
+        public byte[][] classHashes;
+    }
+}
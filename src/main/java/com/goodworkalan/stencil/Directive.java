@@ -0,0 +1,90 @@
+package com.goodworkalan.stencil;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The kinds of commands that can appear in a Stencil line.
+ * 
+ * @author Alan Gutierrez
+ */
+enum Directive {
+    /** Bind a type from the injector as the current context. */
+    BIND("Bind"),
+    
+    /** Assign an escaper. */
+    ESCAPE("Escape"),
+    
+    /** Emit the value of a path. */
+    GET("Get"),
+    
+    /** Begin or end a conditional block. */
+    IF("If"),
+    
+    /** Begin or end a negated conditional block. */
+    UNLESS("Unless"),
+
+    /** An alternate condition of a conditional block. */
+    ELSE_IF("ElseIf"),
+
+    /** The final alternative of a conditional block. */
+    ELSE("Else"),
+    
+    /** Begin or end an iteration over a collection. */
+    EACH("Each"),
+
+    /** Content emitted between the items of an iteration. */
+    SEPARATOR("Separator"),
+
+    /** Import the stencils of another page. */
+    IMPORT("Import"),
+    
+    /** Begin or end a stencil definition. */
+    STENCIL("Stencil"),
+    
+    /** Emit a nested block provided by the stencil caller. */
+    NESTED("Nested"),
+
+    /** Write the output buffered so far to the underlying stream. */
+    FLUSH("Flush"),
+
+    /** A stencil invocation or the name of a nested block. */
+    CALL(null);
+    
+    /** The map of command names to directives. */
+    private final static Map<String, Directive> directives = new HashMap<String, Directive>();
+    
+    static {
+        for (Directive directive : values()) {
+            if (directive.name != null) {
+                directives.put(directive.name, directive);
+            }
+        }
+    }
+    
+    /** The command name. */
+    private final String name;
+    
+    /**
+     * Create a directive with the given command name.
+     * 
+     * @param name
+     *            The command name.
+     */
+    private Directive(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Get the directive for the given command name, or the
+     * <code>CALL</code> directive if the name is not a built in command.
+     * 
+     * @param name
+     *            The command name.
+     * @return The directive.
+     */
+    public static Directive forName(String name) {
+        Directive directive = directives.get(name);
+        return directive == null ? CALL : directive;
+    }
+}
@@ -1,5 +1,7 @@
 package com.goodworkalan.stencil;
 
+import java.io.IOException;
+
 /**
  * Escape a string in a document.
  *
@@ -16,4 +18,22 @@ public class Escaper {
     public CharSequence escape(CharSequence unescaped) {
         return unescaped;
     }
+
+    /**
+     * Escape the given string writing the escaped string to the given output.
+     * This implementation appends the string returned by
+     * {@link #escape(CharSequence)}, so that escapers that only implement the
+     * returning form work as before. Escapers that can should override this
+     * method to write directly to the output.
+     * 
+     * @param unescaped
+     *            The string to escape.
+     * @param output
+     *            The output.
+     * @throws IOException
+     *             For any I/O error.
+     */
+    public void escape(CharSequence unescaped, Appendable output) throws IOException {
+        output.append(escape(unescaped));
+    }
 }
@@ -0,0 +1,20 @@
+package com.goodworkalan.stencil;
+
+/**
+ * When a render to an output stream or channel writes the bytes it has
+ * buffered. Whatever the policy, the buffered bytes are written when the
+ * maximum number of buffers for a render are full and at the end of the
+ * render, so the memory held by a render is bounded.
+ *
+ * @author Alan Gutierrez
+ */
+public enum FlushPolicy {
+    /** Write the buffered bytes each time a buffer fills. */
+    FULL,
+
+    /** Write the buffered bytes when the stencil asks for a flush. */
+    FLUSH,
+
+    /** Write the buffered bytes at the end of the render. */
+    END
+}
@@ -14,21 +14,21 @@ import com.goodworkalan.ilk.inject.Injector;
  * @author Alan Gutierrez
  */
 class Level<T> {
-    /** The injector. */
+    /** The injector created for this level or null if it has none of its own. */
     public Injector injector;
 
+    /** The injector in scope, either the injector of this level or inherited. */
+    public Injector scope;
+
     /** Whether to skip forwarding events to the transformer handler. */
     public boolean skip;
     
-    /** The type of context in a box. */
+    /** The type of context in a box, inherited unless assigned. */
     public Ilk.Box ilk;
 
-    /** The currently selected object in a box. */
+    /** The currently selected object in a box, inherited unless assigned. */
     public Ilk.Box instance;
     
-    /** Whether this level was created for a stencil invocation. */
-    public boolean isStencil;
-    
     /** The depth of the indent before the command if it is a block command. */
     public int indent;
     
@@ -41,21 +41,162 @@ class Level<T> {
     /** The index where this command began. */
     public int index;
     
-    /** The content after this command on the line where it began. */
-    public String after;
+    /** The line where this command began. */
+    public Line line;
+    
+    /** The count of commands processed on the line where this command began. */
+    public int count;
+    
+    /** The escapers in scope used to escape character sequences or null. */
+    public Map<String, Escaper> escapers;
     
-    /** The escapers used to escape character sequences. */
-    public Map<String, Escaper> escapers = new HashMap<String, Escaper>();
+    /** Whether the map of escapers is shared with the level beneath. */
+    public boolean sharedEscapers;
 
     /** The iterator of the collection traversed by each. */
     public Iterator<T> each = null;
+
+    /** The stream traversed by each, closed when this level is cleared. */
+    public Object stream;
     
     /** The type collection for the collection traversed by each. */
     public Actualizer<T> actualizer = null;
     
-    /** The map of stencils imported by this element. */
-    public Map<String, Stencil> stencils = new HashMap<String, Stencil>();
+    /** The map of stencils in scope, including those imported by this element, or null. */
+    public Map<String, Stencil> stencils;
+    
+    /** Whether the map of stencils is shared with the level beneath. */
+    public boolean sharedStencils;
     
-    /** The list of classes brought into the Java namespace. */
-    public Map<String, Ilk.Key> classes = new HashMap<String, Ilk.Key>();
+    /** The list of classes brought into the Java namespace or null. */
+    public Map<String, Ilk.Key> classes;
+
+    /**
+     * Inherit the values in scope from the given level beneath this level.
+     * The maps of escapers, stencils and classes are shared with the level
+     * beneath until this level adds to them.
+     * 
+     * @param below
+     *            The level beneath this level.
+     */
+    public void inherit(Level<T> below) {
+        scope = below.scope;
+        ilk = below.ilk;
+        instance = below.instance;
+        escapers = below.escapers;
+        sharedEscapers = true;
+        stencils = below.stencils;
+        sharedStencils = true;
+        classes = below.classes;
+    }
+
+    /**
+     * Assign the escaper with the given name at this level.
+     * 
+     * @param name
+     *            The escaper name.
+     * @param escaper
+     *            The escaper.
+     */
+    public void putEscaper(String name, Escaper escaper) {
+        if (escapers == null) {
+            escapers = new HashMap<String, Escaper>();
+        } else if (sharedEscapers) {
+            escapers = new HashMap<String, Escaper>(escapers);
+            sharedEscapers = false;
+        }
+        escapers.put(name, escaper);
+    }
+
+    /**
+     * Assign the stencil with the given qualified name at this level.
+     * 
+     * @param name
+     *            The qualified stencil name.
+     * @param stencil
+     *            The stencil.
+     */
+    public void putStencil(String name, Stencil stencil) {
+        if (stencils == null) {
+            stencils = new HashMap<String, Stencil>();
+        } else if (sharedStencils) {
+            stencils = new HashMap<String, Stencil>(stencils);
+            sharedStencils = false;
+        }
+        stencils.put(name, stencil);
+    }
+
+    /**
+     * Assign all of the stencils in the given map of qualified names to
+     * stencils at this level. If no stencils are in scope, the given map is
+     * shared until this level adds to it.
+     * 
+     * @param stencils
+     *            The map of qualified names to stencils.
+     */
+    public void putStencils(Map<String, Stencil> stencils) {
+        if (this.stencils == null) {
+            this.stencils = stencils;
+            sharedStencils = true;
+        } else {
+            if (sharedStencils) {
+                this.stencils = new HashMap<String, Stencil>(this.stencils);
+                sharedStencils = false;
+            }
+            this.stencils.putAll(stencils);
+        }
+    }
+
+    /**
+     * Get the escaper in scope with the given name.
+     * 
+     * @param name
+     *            The escaper name.
+     * @return The escaper or null if none is assigned.
+     */
+    public Escaper getEscaper(String name) {
+        return escapers == null ? null : escapers.get(name);
+    }
+
+    /**
+     * Get the stencil in scope with the given qualified name.
+     * 
+     * @param name
+     *            The qualified stencil name.
+     * @return The stencil or null if none is found.
+     */
+    public Stencil getStencil(String name) {
+        return stencils == null ? null : stencils.get(name);
+    }
+
+    /**
+     * Clear this level so that it can be reused by the stack, releasing any
+     * references to the objects of the render and closing the stream
+     * traversed by each.
+     */
+    public void clear() {
+        Object stream = this.stream;
+        injector = null;
+        scope = null;
+        skip = false;
+        ilk = null;
+        instance = null;
+        indent = 0;
+        met = false;
+        command = null;
+        index = 0;
+        line = null;
+        count = 0;
+        escapers = null;
+        sharedEscapers = false;
+        each = null;
+        this.stream = null;
+        actualizer = null;
+        stencils = null;
+        sharedStencils = false;
+        classes = null;
+        if (stream != null) {
+            Actualizer.close(stream);
+        }
+    }
 }
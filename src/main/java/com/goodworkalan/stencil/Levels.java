@@ -0,0 +1,172 @@
+package com.goodworkalan.stencil;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * An array backed stack of levels. When a level is pushed it inherits the
+ * selected object, the context type, the injector and the maps of escapers,
+ * stencils and classes in scope from the level beneath it, so that finding
+ * the value in scope takes the same time no matter how deeply the stack is
+ * nested.
+ * <p>
+ * The stack is reused from one render to the next by the thread that renders,
+ * so the levels popped from the stack are kept and cleared to be reused by the
+ * next push. The stack also holds the buffer of blank lines that are held
+ * back until it is known whether they belong to a block that is skipped.
+ *
+ * @author Alan Gutierrez
+ *
+ * @param <T>
+ *            The actualizer type variable of the levels.
+ */
+class Levels<T> {
+    /** The escapers assigned to the bottom level of every render. */
+    private final Map<String, Escaper> escapers;
+
+    /** The levels. */
+    private Level<T>[] levels;
+
+    /** The number of levels on the stack. */
+    private int size;
+
+    /** The blank lines held back by the compile invocations on the stack. */
+    private Line[] blankLines;
+
+    /** The number of blank lines held back. */
+    private int blankLineCount;
+
+    /** Whether the stack is in use by a render. */
+    public boolean busy;
+
+    /** The stencil rendered by the outermost compile of the render. */
+    public Stencil root;
+
+    /** Whether the output has been flushed after the first top level stencil. */
+    public boolean flushed;
+
+    /**
+     * Create an empty stack of levels.
+     */
+    @SuppressWarnings("unchecked")
+    public Levels() {
+        this.levels = new Level[16];
+        this.blankLines = new Line[16];
+        this.escapers = new HashMap<String, Escaper>();
+        this.escapers.put("*", new Escaper());
+    }
+
+    /**
+     * Push a new level onto the stack that inherits the values in scope from
+     * the current top level. The bottom level of the stack is given the
+     * default escaper.
+     */
+    @SuppressWarnings("unchecked")
+    public void addLast() {
+        if (size == levels.length) {
+            Level<T>[] expanded = new Level[size * 2];
+            System.arraycopy(levels, 0, expanded, 0, size);
+            levels = expanded;
+        }
+        Level<T> level = levels[size];
+        if (level == null) {
+            level = levels[size] = new Level<T>();
+        }
+        if (size == 0) {
+            level.escapers = escapers;
+            level.sharedEscapers = true;
+        } else {
+            level.inherit(levels[size - 1]);
+        }
+        size++;
+    }
+
+    /**
+     * Get the top level of the stack.
+     *
+     * @return The top level.
+     */
+    public Level<T> getLast() {
+        return levels[size - 1];
+    }
+
+    /**
+     * Remove the top level of the stack, clearing it for reuse and closing
+     * the stream it iterates.
+     */
+    public void removeLast() {
+        levels[--size].clear();
+    }
+
+    /**
+     * Remove all the levels from the stack and forget any blank lines and the
+     * state of the render so that the stack can be used by the next render.
+     * Every level is cleared even if closing the stream of a level fails, and
+     * the first failure is raised once the stack is empty.
+     */
+    public void clear() {
+        RuntimeException failure = null;
+        while (size != 0) {
+            try {
+                removeLast();
+            } catch (RuntimeException e) {
+                if (failure == null) {
+                    failure = e;
+                }
+            }
+        }
+        truncateBlankLines(0);
+        root = null;
+        flushed = false;
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Hold back a blank line.
+     *
+     * @param line
+     *            The blank line.
+     */
+    public void addBlankLine(Line line) {
+        if (blankLineCount == blankLines.length) {
+            Line[] expanded = new Line[blankLineCount * 2];
+            System.arraycopy(blankLines, 0, expanded, 0, blankLineCount);
+            blankLines = expanded;
+        }
+        blankLines[blankLineCount++] = line;
+    }
+
+    /**
+     * Get the blank line at the given index.
+     *
+     * @param index
+     *            The index.
+     * @return The blank line.
+     */
+    public Line getBlankLine(int index) {
+        return blankLines[index];
+    }
+
+    /**
+     * Get the number of blank lines held back.
+     *
+     * @return The number of blank lines.
+     */
+    public int getBlankLineCount() {
+        return blankLineCount;
+    }
+
+    /**
+     * Forget the blank lines held back after the given count of blank lines.
+     *
+     * @param count
+     *            The count of blank lines to keep.
+     */
+    public void truncateBlankLines(int count) {
+        while (blankLineCount != count) {
+            blankLines[--blankLineCount] = null;
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package com.goodworkalan.stencil;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Splits a line of a Stencil document into its commands in a single pass over
+ * the characters of the page text, without creating any strings until a
+ * command is found.
+ * <p>
+ * A command is an at sign followed by a command name, optionally followed by
+ * either an exclamation point or a payload in parenthesis. Text before a
+ * command may contain a doubled at sign. When the at sign of a line cannot
+ * begin a command, the last doubled at sign before it is taken as a command
+ * named with a single at sign.
+ *
+ * @author Alan Gutierrez
+ */
+class Lexer {
+    /** An empty array of commands. */
+    private final static Command[] NO_COMMANDS = new Command[0];
+
+    /**
+     * Split the line between the given offsets of the given page text into
+     * commands.
+     *
+     * @param text
+     *            The page text.
+     * @param start
+     *            The offset of the first character of the line.
+     * @param end
+     *            The offset of the new line that terminates the line.
+     * @return The commands in the line.
+     */
+    public static Command[] lex(char[] text, int start, int end) {
+        List<Command> commands = null;
+        int offset = start;
+        for (;;) {
+            int escape = -1;
+            int at = -1;
+            int i = offset;
+            while (i < end) {
+                if (text[i] != '@') {
+                    i++;
+                } else if (i + 1 < end && text[i + 1] == '@') {
+                    escape = i;
+                    i += 2;
+                } else {
+                    if (name(text, i + 1, end) != -1) {
+                        at = i;
+                    }
+                    break;
+                }
+            }
+            if (at == -1) {
+                if (escape == -1) {
+                    break;
+                }
+                at = escape;
+            }
+            int nameEnd = at == escape ? at + 2 : name(text, at + 1, end);
+            int payloadStart = -1, payloadEnd = -1;
+            int after = nameEnd;
+            if (after < end && text[after] == '!') {
+                after++;
+            } else if (after < end && text[after] == '(') {
+                int close = after + 1;
+                while (close < end && text[close] != ')') {
+                    close++;
+                }
+                if (close < end) {
+                    payloadStart = after + 1;
+                    payloadEnd = close;
+                    after = close + 1;
+                }
+            }
+            if (commands == null) {
+                commands = new ArrayList<Command>();
+            }
+            commands.add(new Command(text, offset, at, nameEnd, payloadStart, payloadEnd, after, end));
+            offset = after;
+        }
+        return commands == null ? NO_COMMANDS : commands.toArray(new Command[commands.size()]);
+    }
+
+    /**
+     * Find the end of the command name that begins at the given offset. A
+     * command name is an upper case letter followed by one or more letters,
+     * optionally followed by a dot, a letter, and one or more letters or
+     * digits.
+     *
+     * @param text
+     *            The page text.
+     * @param start
+     *            The offset of the first character of the name.
+     * @param end
+     *            The offset of the end of the line.
+     * @return The offset of the end of the name or -1 if there is no name at
+     *         the offset.
+     */
+    private static int name(char[] text, int start, int end) {
+        if (start == end || text[start] < 'A' || text[start] > 'Z') {
+            return -1;
+        }
+        int i = start + 1;
+        while (i < end && isLetter(text[i])) {
+            i++;
+        }
+        if (i == start + 1) {
+            return -1;
+        }
+        if (i + 2 < end && text[i] == '.' && isLetter(text[i + 1]) && isLetterOrDigit(text[i + 2])) {
+            i += 3;
+            while (i < end && isLetterOrDigit(text[i])) {
+                i++;
+            }
+        }
+        return i;
+    }
+
+    /**
+     * Split the given payload on an arrow and the whitespace that surrounds
+     * it, discarding any empty arguments at the end.
+     *
+     * @param payload
+     *            The payload.
+     * @return The arguments.
+     */
+    public static String[] split(String payload) {
+        List<String> arguments = new ArrayList<String>();
+        int offset = 0;
+        for (;;) {
+            int arrow = payload.indexOf("=>", offset);
+            if (arrow == -1) {
+                break;
+            }
+            int before = arrow;
+            while (before > offset && isSpace(payload.charAt(before - 1))) {
+                before--;
+            }
+            arguments.add(payload.substring(offset, before));
+            offset = arrow + 2;
+            while (offset < payload.length() && isSpace(payload.charAt(offset))) {
+                offset++;
+            }
+        }
+        if (arguments.isEmpty()) {
+            return new String[] { payload };
+        }
+        arguments.add(payload.substring(offset));
+        int size = arguments.size();
+        while (size != 0 && arguments.get(size - 1).length() == 0) {
+            size--;
+        }
+        return arguments.subList(0, size).toArray(new String[size]);
+    }
+
+    /**
+     * Determine whether the given character is an ASCII letter.
+     *
+     * @param ch
+     *            The character.
+     * @return True if the character is a letter.
+     */
+    private static boolean isLetter(char ch) {
+        return (ch >= 'a' && ch <= 'z') || (ch >= 'A' && ch <= 'Z');
+    }
+
+    /**
+     * Determine whether the given character is an ASCII letter or digit.
+     *
+     * @param ch
+     *            The character.
+     * @return True if the character is a letter or digit.
+     */
+    private static boolean isLetterOrDigit(char ch) {
+        return isLetter(ch) || (ch >= '0' && ch <= '9');
+    }
+
+    /**
+     * Determine whether the given character is a whitespace character as
+     * matched by <code>\s</code> in a regular expression.
+     *
+     * @param ch
+     *            The character.
+     * @return True if the character is whitespace.
+     */
+    private static boolean isSpace(char ch) {
+        return ch == ' ' || ch == '\t' || ch == '\n' || ch == '\u000B' || ch == '\f' || ch == '\r';
+    }
+}
@@ -0,0 +1,145 @@
+package com.goodworkalan.stencil;
+
+/**
+ * A line of a Stencil document parsed into the commands it contains, so that
+ * the document is only parsed once, when it is loaded, instead of every time
+ * it is emitted. The line does not hold its own text, but the offsets of its
+ * text in the character array of the page.
+ * 
+ * @author Alan Gutierrez
+ */
+class Line {
+    /** An empty array of commands. */
+    private final static Command[] NO_COMMANDS = new Command[0];
+
+    /** The offset of the first character of the line in the page text. */
+    public final int start;
+
+    /**
+     * The offset of the new line that terminates the line in the page text.
+     */
+    public final int end;
+    
+    /** The number of whitespace characters by which the line is indented. */
+    public final int indent;
+    
+    /** Whether the line is a comment. */
+    public final boolean comment;
+    
+    /** Whether the line is entirely whitespace. */
+    public final boolean whitespace;
+    
+    /** The commands in the line in the order in which they appear. */
+    public final Command[] commands;
+
+    /**
+     * The offset in the page text of the end of the run of plain lines that
+     * begins with this line, if this line begins a run of plain lines,
+     * otherwise zero.
+     */
+    public int runEnd;
+    
+    /** The number of lines in the run of plain lines. */
+    public int runLength;
+    
+    /** The least indent of the lines in the run of plain lines. */
+    public int runIndent;
+
+    /**
+     * Parse the line of text between the given offsets in the given page text.
+     * 
+     * @param text
+     *            The page text.
+     * @param start
+     *            The offset of the first character of the line.
+     * @param end
+     *            The offset of the new line that terminates the line.
+     */
+    public Line(char[] text, int start, int end) {
+        this.start = start;
+        this.end = end;
+        this.indent = indent(text, start, end);
+        this.comment = isComment(text, start + indent, end);
+        this.whitespace = start + indent == end;
+        this.commands = comment ? NO_COMMANDS : Lexer.lex(text, start, end);
+    }
+
+    /**
+     * Determine whether this line is plain text, without commands, that is
+     * neither a comment nor entirely whitespace.
+     * 
+     * @return True if the line is plain text.
+     */
+    public boolean isPlain() {
+        return !comment && !whitespace && commands.length == 0;
+    }
+
+    /**
+     * Get the offset of the remainder of the line after the given count of
+     * commands have been processed.
+     * 
+     * @param count
+     *            The count of commands processed.
+     * @return The offset of the remainder of the line.
+     */
+    public int remainder(int count) {
+        return count == 0 ? start : commands[count - 1].end;
+    }
+
+    /**
+     * Get the number of whitespace characters by which the line between the
+     * given offsets is indented.
+     * 
+     * @param text
+     *            The page text.
+     * @param start
+     *            The offset of the first character of the line.
+     * @param end
+     *            The offset of the new line that terminates the line.
+     * @return The number of whitespace characters indented.
+     */
+    private static int indent(char[] text, int start, int end) {
+        int index = start;
+        while (index < end && Character.isWhitespace(text[index])) {
+            index++;
+        }
+        return index - start;
+    }
+
+    /**
+     * Determine if the line whose first non-whitespace character is at the
+     * given offset is a comment line.
+     * 
+     * @param text
+     *            The page text.
+     * @param index
+     *            The offset of the first non-whitespace character.
+     * @param end
+     *            The offset of the new line that terminates the line.
+     * @return True if the line is a comment.
+     */
+    private static boolean isComment(char[] text, int index, int end) {
+        return index + 1 < end && text[index] == '@' && Character.isWhitespace(text[index + 1]);
+    }
+
+    /**
+     * Determine if the characters between the given offsets are all
+     * whitespace.
+     * 
+     * @param text
+     *            The page text.
+     * @param start
+     *            The start offset.
+     * @param end
+     *            The end offset.
+     * @return True if the characters are entirely whitespace.
+     */
+    static boolean isWhitespace(char[] text, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (!Character.isWhitespace(text[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
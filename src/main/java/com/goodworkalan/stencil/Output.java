@@ -0,0 +1,54 @@
+package com.goodworkalan.stencil;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * The destination of a render. An output is a writer that can also write a
+ * run of the text of a source, so that an output that writes bytes can write
+ * the static text of a page from bytes encoded once for the source, encoding
+ * only the values emitted by the render.
+ *
+ * @author Alan Gutierrez
+ */
+abstract class Output extends Writer {
+    /** The count of characters written to this output. */
+    public int count;
+
+    /**
+     * Write the text of the given source between the given offsets.
+     *
+     * @param source
+     *            The source.
+     * @param start
+     *            The offset of the first character to write.
+     * @param end
+     *            The offset after the last character to write.
+     * @throws IOException
+     *             For any I/O error.
+     */
+    public void write(Source source, int start, int end) throws IOException {
+        write(source.text, start, end - start);
+    }
+
+    /**
+     * Write any output held by this output to the underlying destination at
+     * the end of a render. The underlying destination is not closed.
+     *
+     * @throws IOException
+     *             For any I/O error.
+     */
+    public abstract void finish() throws IOException;
+
+    /**
+     * Finish writing to this output without closing the underlying
+     * destination, which belongs to the caller of the render.
+     *
+     * @throws IOException
+     *             For any I/O error.
+     */
+    @Override
+    public void close() throws IOException {
+        finish();
+    }
+}
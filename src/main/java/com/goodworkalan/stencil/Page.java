@@ -1,9 +1,14 @@
 package com.goodworkalan.stencil;
 
 import java.net.URI;
+import java.net.URL;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * Cached results of a stencil document analysis, including in order document
@@ -15,28 +20,149 @@ class Page {
     /** The URI of the XML document. */
     public final URI uri;
 
+    /** The URL from which the page was read. */
+    public final URL url;
+
     /** The last modified time of the resource. */
     public final long lastModified;
 
-    /** The list of lines in the document. */
-    public final List<String> lines;
+    /**
+     * The text and parsed lines of the document, shared with the pages of
+     * other URIs with the same text.
+     */
+    public final Source source;
+
+    /**
+     * Whether the page has been requested from the page cache since the clock
+     * of the page cache last visited it.
+     */
+    public volatile boolean referenced;
+
+    /** Whether the page has been verified by a static analysis of all branches. */
+    public volatile boolean verified;
+
+    /**
+     * A hash of the text of this page, the pages and escape tables it uses and
+     * the classes it references, or null if it has not been computed since a
+     * dependency was added.
+     */
+    public volatile byte[] fingerprint;
+
+    /** The estimated count of characters in a render of this page. */
+    public final SizeEstimator outputSize = new SizeEstimator();
+
+    /**
+     * The accessor last resolved for each command of the source by command
+     * ordinal, reused for as long as the command is evaluated against the same
+     * context type. The accessors are kept by the page, not the source, since
+     * the source is shared by pages of other URIs.
+     */
+    public final AtomicReferenceArray<Accessor> accessors;
+
+    /**
+     * The escaper resolved by each escape command of the source by command
+     * ordinal, kept by the page so that each page resolves its own escapers
+     * and records its own dependencies on escape tables.
+     */
+    public final AtomicReferenceArray<Escaper> escapers;
 
     /** The map of qualified stencil names to line indexes. */
-    public final Map<String, Stencil> stencils = new HashMap<String, Stencil>();
+    public final Map<String, Stencil> stencils = new ConcurrentHashMap<String, Stencil>();
+
+    /** The URIs of the imported pages and escape tables this page uses. */
+    private final ConcurrentMap<URI, Boolean> dependencies = new ConcurrentHashMap<URI, Boolean>();
+
+    /** The classes whose members and types this page references. */
+    private final ConcurrentMap<Class<?>, Boolean> classes = new ConcurrentHashMap<Class<?>, Boolean>();
+
+    /** The maps of stencils qualified by an import alias by alias. */
+    private final ConcurrentMap<String, Map<String, Stencil>> imports = new ConcurrentHashMap<String, Map<String, Stencil>>();
 
     /**
-     * Create a page with the given list of in order document nodes.
+     * Create a page for the given URI with the given source.
      * 
      * @param uri
      *            The URI of the XML document.
+     * @param url
+     *            The URL from which the page was read.
      * @param lastModified
      *            The last modified time of the resource.
-     * @param lines
-     *            The list of lines in the document.
+     * @param source
+     *            The text and parsed lines of the document.
      */
-    public Page(URI uri, long lastModified, List<String> lines) {
+    public Page(URI uri, URL url, long lastModified, Source source) {
         this.uri = uri;
-        this.lines = lines;
+        this.url = url;
+        this.source = source;
+        this.accessors = new AtomicReferenceArray<Accessor>(source.commandCount);
+        this.escapers = new AtomicReferenceArray<Escaper>(source.commandCount);
         this.lastModified = lastModified;
     }
+
+    /**
+     * Record that this page uses the resource at the given URI.
+     * 
+     * @param uri
+     *            The URI of an imported page or escape table.
+     * @return True if the dependency was not already recorded.
+     */
+    public boolean addDependency(URI uri) {
+        if (dependencies.putIfAbsent(uri, Boolean.TRUE) == null) {
+            fingerprint = null;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Get the URIs of the imported pages and escape tables this page uses.
+     * 
+     * @return The set of dependency URIs.
+     */
+    public Set<URI> getDependencies() {
+        return dependencies.keySet();
+    }
+
+    /**
+     * Record that this page references the members or the type of the given
+     * class.
+     * 
+     * @param type
+     *            The class.
+     */
+    public void addClass(Class<?> type) {
+        if (classes.putIfAbsent(type, Boolean.TRUE) == null) {
+            fingerprint = null;
+        }
+    }
+
+    /**
+     * Get the classes whose members and types this page references.
+     * 
+     * @return The set of classes.
+     */
+    public Set<Class<?>> getClasses() {
+        return classes.keySet();
+    }
+
+    /**
+     * Get the stencils of this page with names qualified by the given import
+     * alias. The map is created once for each alias used to import the page.
+     * 
+     * @param alias
+     *            The import alias.
+     * @return A map of qualified names to stencils.
+     */
+    public Map<String, Stencil> getStencils(String alias) {
+        Map<String, Stencil> qualified = imports.get(alias);
+        if (qualified == null) {
+            qualified = new HashMap<String, Stencil>();
+            for (Map.Entry<String, Stencil> entry : stencils.entrySet()) {
+                qualified.put(alias + "." + entry.getKey(), entry.getValue());
+            }
+            qualified = Collections.unmodifiableMap(qualified);
+            imports.putIfAbsent(alias, qualified);
+        }
+        return qualified;
+    }
 }
\ No newline at end of file
@@ -0,0 +1,371 @@
+package com.goodworkalan.stencil;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A cache of pages by URI bounded by a maximum weight, the count of characters
+ * held by the cached pages. When the weight of the cache exceeds the maximum,
+ * the least recently used pages are evicted. Evicted pages can be kept in a
+ * second tier of soft references, from which they are restored if they are
+ * requested before they are collected.
+ * <p>
+ * A source shared by several cached pages is weighed once. Its weight is
+ * added when the first page that uses it is cached and removed when the last
+ * page that uses it leaves the cache, so the pages of many URIs with the same
+ * text weigh as much as one page.
+ * <p>
+ * Reading the cache does not lock. Each get marks the page as referenced, and
+ * pages are evicted in the order of a clock, a queue of the cached pages in
+ * which a referenced page at the head of the queue is cleared and moved to the
+ * tail instead of being evicted, so that a page that is read is kept while a
+ * page that is not read is evicted, and each eviction visits at most every
+ * page twice instead of searching the whole cache.
+ * <p>
+ * When a page leaves the cache by eviction and is not kept as a soft
+ * reference, or when the soft reference to a page is collected, the cache
+ * calls {@link #dropped(URI, Collection)} so that the records of the
+ * dependencies of the page can be removed.
+ *
+ * @author Alan Gutierrez
+ */
+class PageCache {
+    /** The cached pages. */
+    private final ConcurrentMap<URI, Page> pages = new ConcurrentHashMap<URI, Page>();
+
+    /** The clock of cached pages in the order in which they are evicted. */
+    private final Queue<Page> clock = new ConcurrentLinkedQueue<Page>();
+
+    /** The pages evicted from the cache and kept until they are collected. */
+    private final ConcurrentMap<URI, SoftPage> softPages = new ConcurrentHashMap<URI, SoftPage>();
+
+    /** The queue of soft references to pages that have been collected. */
+    private final ReferenceQueue<Page> collected = new ReferenceQueue<Page>();
+
+    /** The count of cached pages that share each source. */
+    private final Map<Source, Integer> sources = new IdentityHashMap<Source, Integer>();
+
+    /** The total weight of the sources of the cached pages. */
+    private final AtomicLong weight = new AtomicLong();
+
+    /** The count of requests for a page that was cached. */
+    private final AtomicLong hitCount = new AtomicLong();
+
+    /** The count of requests for a page that was not cached. */
+    private final AtomicLong missCount = new AtomicLong();
+
+    /** The count of pages loaded. */
+    private final AtomicLong loadCount = new AtomicLong();
+
+    /** The total time spent loading pages in nanoseconds. */
+    private final AtomicLong totalLoadTime = new AtomicLong();
+
+    /** The count of pages evicted to keep the cache below its maximum weight. */
+    private final AtomicLong evictionCount = new AtomicLong();
+
+    /** The maximum weight of the cached pages. */
+    private volatile long maximumWeight = Long.MAX_VALUE;
+
+    /** Whether to keep evicted pages as soft references. */
+    private volatile boolean soft;
+
+    /**
+     * Get the maximum weight of the cached pages.
+     *
+     * @return The maximum weight.
+     */
+    public long getMaximumWeight() {
+        return maximumWeight;
+    }
+
+    /**
+     * Set the maximum weight of the cached pages, evicting pages if the cache
+     * is now over weight.
+     *
+     * @param maximumWeight
+     *            The maximum weight.
+     */
+    public void setMaximumWeight(long maximumWeight) {
+        this.maximumWeight = maximumWeight;
+        evict();
+    }
+
+    /**
+     * Get whether evicted pages are kept as soft references.
+     *
+     * @return True if evicted pages are kept as soft references.
+     */
+    public boolean isSoft() {
+        return soft;
+    }
+
+    /**
+     * Set whether evicted pages are kept as soft references.
+     *
+     * @param soft
+     *            If true, evicted pages are kept as soft references.
+     */
+    public void setSoft(boolean soft) {
+        this.soft = soft;
+        if (!soft) {
+            for (SoftPage reference : softPages.values()) {
+                if (softPages.remove(reference.uri, reference)) {
+                    dropped(reference.uri, reference.dependencies);
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the page cached for the given URI, counting a hit or a miss and
+     * marking the page as recently used. A page found among the soft
+     * references is restored to the cache.
+     *
+     * @param uri
+     *            The URI.
+     * @return The page or null if the page is not cached.
+     */
+    public Page get(URI uri) {
+        Page page = pages.get(uri);
+        if (page == null && soft) {
+            SoftPage reference = softPages.remove(uri);
+            if (reference != null) {
+                page = reference.get();
+                if (page == null) {
+                    dropped(uri, reference.dependencies);
+                } else {
+                    put(uri, page);
+                }
+            }
+        }
+        if (page == null) {
+            missCount.incrementAndGet();
+        } else {
+            hitCount.incrementAndGet();
+            page.referenced = true;
+        }
+        return page;
+    }
+
+    /**
+     * Get the page cached for the given URI, or the evicted page still kept
+     * as a soft reference, without counting the request or marking the page
+     * as used.
+     *
+     * @param uri
+     *            The URI.
+     * @return The page or null if the page is not cached.
+     */
+    public Page peek(URI uri) {
+        Page page = pages.get(uri);
+        if (page == null) {
+            SoftPage reference = softPages.get(uri);
+            if (reference != null) {
+                page = reference.get();
+            }
+        }
+        return page;
+    }
+
+    /**
+     * Cache the given page for the given URI, evicting pages in the order of
+     * the clock if the cache is over weight.
+     *
+     * @param uri
+     *            The URI.
+     * @param page
+     *            The page.
+     */
+    public void put(URI uri, Page page) {
+        page.referenced = true;
+        acquire(page.source);
+        Page previous = pages.put(uri, page);
+        if (previous == page) {
+            release(page.source);
+        } else {
+            clock.offer(page);
+            if (previous != null) {
+                release(previous.source);
+                clock.remove(previous);
+            }
+        }
+        evict();
+    }
+
+    /**
+     * Record the load of a page that took the given time.
+     *
+     * @param nanos
+     *            The time spent loading the page in nanoseconds.
+     */
+    public void loaded(long nanos) {
+        loadCount.incrementAndGet();
+        totalLoadTime.addAndGet(nanos);
+    }
+
+    /**
+     * Remove the page cached for the given URI, including a page kept as a
+     * soft reference.
+     *
+     * @param uri
+     *            The URI.
+     * @return The page removed or null if no page was cached.
+     */
+    public Page remove(URI uri) {
+        softPages.remove(uri);
+        Page page = pages.remove(uri);
+        if (page != null) {
+            release(page.source);
+            clock.remove(page);
+        }
+        return page;
+    }
+
+    /**
+     * Get a list of the pages in the cache, including the pages kept as soft
+     * references that have not been collected.
+     *
+     * @return The cached pages.
+     */
+    public List<Page> values() {
+        List<Page> values = new ArrayList<Page>(pages.values());
+        for (SoftPage reference : softPages.values()) {
+            Page page = reference.get();
+            if (page != null) {
+                values.add(page);
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Get the cache statistics.
+     *
+     * @return The cache statistics.
+     */
+    public CacheStatistics getStatistics() {
+        return new CacheStatistics(pages.size(), weight.get(), hitCount.get(), missCount.get(), loadCount.get(), totalLoadTime.get(), evictionCount.get());
+    }
+
+    /**
+     * Called when the given page leaves the cache without being kept as a
+     * soft reference, or when the soft reference to the page is collected,
+     * but not when the page is removed.
+     *
+     * @param uri
+     *            The URI of the page.
+     * @param dependencies
+     *            The URIs of the resources the page depends on.
+     */
+    protected void dropped(URI uri, Collection<URI> dependencies) {
+    }
+
+    /**
+     * Count a cached page that uses the given source, adding the weight of
+     * the source if it is the first cached page to use it.
+     * 
+     * @param source
+     *            The source.
+     */
+    private void acquire(Source source) {
+        synchronized (sources) {
+            Integer count = sources.get(source);
+            if (count == null) {
+                sources.put(source, 1);
+                weight.addAndGet(source.text.length);
+            } else {
+                sources.put(source, count + 1);
+            }
+        }
+    }
+
+    /**
+     * Forget a cached page that used the given source, removing the weight of
+     * the source if it was the last cached page to use it.
+     * 
+     * @param source
+     *            The source.
+     */
+    private void release(Source source) {
+        synchronized (sources) {
+            int count = sources.get(source);
+            if (count == 1) {
+                sources.remove(source);
+                weight.addAndGet(-source.text.length);
+            } else {
+                sources.put(source, count - 1);
+            }
+        }
+    }
+
+    /**
+     * Evict pages in the order of the clock until the weight of the cache is
+     * no greater than the maximum weight. A page that has been referenced
+     * since it was last visited is cleared and moved to the end of the clock.
+     * The last page in the cache is never evicted, so that a page heavier than
+     * the maximum weight can be rendered.
+     */
+    private synchronized void evict() {
+        SoftPage reference;
+        while ((reference = (SoftPage) collected.poll()) != null) {
+            if (softPages.remove(reference.uri, reference)) {
+                dropped(reference.uri, reference.dependencies);
+            }
+        }
+        while (weight.get() > maximumWeight && pages.size() > 1) {
+            Page page = clock.poll();
+            if (page == null) {
+                break;
+            }
+            if (page.referenced) {
+                page.referenced = false;
+                clock.offer(page);
+            } else if (pages.remove(page.uri, page)) {
+                release(page.source);
+                evictionCount.incrementAndGet();
+                if (soft) {
+                    softPages.put(page.uri, new SoftPage(page, collected));
+                } else {
+                    dropped(page.uri, page.getDependencies());
+                }
+            }
+        }
+    }
+
+    /**
+     * A soft reference to an evicted page that keeps the URI and the
+     * dependencies of the page for when the page is collected.
+     */
+    private final static class SoftPage extends SoftReference<Page> {
+        /** The URI of the page. */
+        public final URI uri;
+
+        /** The URIs of the resources the page depends on. */
+        public final Collection<URI> dependencies;
+
+        /**
+         * Create a soft reference to the given page.
+         *
+         * @param page
+         *            The page.
+         * @param queue
+         *            The queue of collected references.
+         */
+        public SoftPage(Page page, ReferenceQueue<Page> queue) {
+            super(page, queue);
+            this.uri = page.uri;
+            this.dependencies = page.getDependencies();
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package com.goodworkalan.stencil;
+
+import java.net.URI;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * The results of precompiling a tree of stencils, the time taken to load and
+ * verify each stencil and the errors raised by the stencils that failed.
+ *
+ * @author Alan Gutierrez
+ */
+public class PrecompileReport {
+    /** The time in nanoseconds taken to compile each stencil by URI. */
+    private final Map<URI, Long> timings;
+
+    /** The errors raised by the stencils that failed by URI. */
+    private final Map<URI, Throwable> failures;
+
+    /** The time in nanoseconds taken to precompile all of the stencils. */
+    private final long elapsed;
+
+    /**
+     * Create a precompile report.
+     * 
+     * @param timings
+     *            The time in nanoseconds taken to compile each stencil by URI.
+     * @param failures
+     *            The errors raised by the stencils that failed by URI.
+     * @param elapsed
+     *            The time in nanoseconds taken to precompile all of the
+     *            stencils.
+     */
+    public PrecompileReport(Map<URI, Long> timings, Map<URI, Throwable> failures, long elapsed) {
+        this.timings = Collections.unmodifiableMap(timings);
+        this.failures = Collections.unmodifiableMap(failures);
+        this.elapsed = elapsed;
+    }
+
+    /**
+     * Get the time in nanoseconds taken to compile each stencil, including
+     * those that failed, by URI.
+     * 
+     * @return The compile times by URI.
+     */
+    public Map<URI, Long> getTimings() {
+        return timings;
+    }
+
+    /**
+     * Get the errors raised by the stencils that failed by URI.
+     * 
+     * @return The errors by URI.
+     */
+    public Map<URI, Throwable> getFailures() {
+        return failures;
+    }
+
+    /**
+     * Get the time in nanoseconds taken to precompile all of the stencils.
+     * 
+     * @return The elapsed time.
+     */
+    public long getElapsed() {
+        return elapsed;
+    }
+
+    /**
+     * Determine whether every stencil compiled without error.
+     * 
+     * @return True if no stencil failed.
+     */
+    public boolean isSuccessful() {
+        return failures.isEmpty();
+    }
+}
@@ -0,0 +1,58 @@
+package com.goodworkalan.stencil;
+
+import java.util.Arrays;
+
+/**
+ * A moving estimate of the size of the output of renders of a page, taken as
+ * a high percentile of the sizes of the most recent renders, used to size the
+ * buffer of the next render so that it does not grow while the page is
+ * rendered.
+ * <p>
+ * Recording a size is a single unsynchronized write into a ring of samples.
+ * A sample lost to a race between renders only makes the estimate slightly
+ * less current.
+ *
+ * @author Alan Gutierrez
+ */
+class SizeEstimator {
+    /** The number of recent sizes kept. */
+    private final static int SAMPLES = 16;
+
+    /** The percentile of the recent sizes used as the estimate. */
+    private final static int PERCENTILE = 90;
+
+    /** The ring of recent sizes. */
+    private final int[] sizes = new int[SAMPLES];
+
+    /** The count of sizes recorded. */
+    private volatile int count;
+
+    /**
+     * Record the size of the output of a render.
+     *
+     * @param size
+     *            The size of the output.
+     */
+    public void record(int size) {
+        int index = count;
+        sizes[index % SAMPLES] = size;
+        count = index + 1 < 0 ? SAMPLES : index + 1;
+    }
+
+    /**
+     * Get the estimated size of the output of the next render, or zero if no
+     * render has been recorded.
+     *
+     * @return The estimated size.
+     */
+    public int estimate() {
+        int recorded = Math.min(count, SAMPLES);
+        if (recorded == 0) {
+            return 0;
+        }
+        int[] sorted = new int[recorded];
+        System.arraycopy(sizes, 0, sorted, 0, recorded);
+        Arrays.sort(sorted);
+        return sorted[(recorded * PERCENTILE - 1) / 100];
+    }
+}
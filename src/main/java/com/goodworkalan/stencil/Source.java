@@ -0,0 +1,382 @@
+package com.goodworkalan.stencil;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.Arrays;
+
+/**
+ * The text of a Stencil document and its parsed lines. A source depends only
+ * on the content of the document, so a source is shared by the pages of every
+ * URI that has the same content, while each page keeps the URI used to
+ * resolve its imports and the stencils it defines.
+ *
+ * @author Alan Gutierrez
+ */
+class Source {
+    /**
+     * The text of the document with every line terminated by a single new
+     * line character.
+     */
+    public final char[] text;
+
+    /** The parsed lines of the document. */
+    public final Line[] lines;
+
+    /** The count of commands in the document. */
+    public final int commandCount;
+
+    /**
+     * The text as a key in a map of sources by content, kept so that the key
+     * lives as long as the source.
+     */
+    public final Content content;
+
+    /**
+     * The text encoded with each character set used to write bytes, in the
+     * order in which the character sets were first used.
+     */
+    private volatile Encoding[] encodings = new Encoding[0];
+
+    /**
+     * Create a source from the given text.
+     *
+     * @param content
+     *            The text with every line terminated by a single new line
+     *            character.
+     * @see #normalize(CharSequence)
+     */
+    public Source(Content content) {
+        char[] text = content.text;
+        this.content = content;
+        this.text = text;
+        int count = 0;
+        for (int i = 0; i < text.length; i++) {
+            if (text[i] == '\n') {
+                count++;
+            }
+        }
+        this.lines = new Line[count];
+        for (int i = 0, start = 0, line = 0; i < text.length; i++) {
+            if (text[i] == '\n') {
+                lines[line++] = new Line(text, start, i);
+                start = i + 1;
+            }
+        }
+        int ordinal = 0;
+        for (Line line : lines) {
+            for (Command command : line.commands) {
+                command.ordinal = ordinal++;
+            }
+        }
+        this.commandCount = ordinal;
+        join();
+    }
+
+    /**
+     * Get the text of this source encoded with the given character set,
+     * encoding the text only once for each character set. The encodings are
+     * kept in a short array copied when a character set is added, since a
+     * page is rarely written with more than one or two character sets.
+     *
+     * @param charset
+     *            The character set.
+     * @return The encoded text.
+     */
+    public Encoding getEncoding(Charset charset) {
+        Encoding[] encodings = this.encodings;
+        for (int i = 0; i < encodings.length; i++) {
+            if (encodings[i].charset.equals(charset)) {
+                return encodings[i];
+            }
+        }
+        Encoding encoding = new Encoding(text, lines, charset);
+        Encoding[] expanded = new Encoding[encodings.length + 1];
+        System.arraycopy(encodings, 0, expanded, 0, encodings.length);
+        expanded[encodings.length] = encoding;
+        // An encoding added by a concurrent call may be lost and encoded again.
+        this.encodings = expanded;
+        return encoding;
+    }
+
+    /**
+     * Copy the given document text replacing each line terminator with a
+     * single line feed. A line is terminated by a line feed, a carriage
+     * return, or a carriage return followed by a line feed, as with
+     * {@link java.io.BufferedReader#readLine()}, and a last line without a
+     * terminator is given one.
+     *
+     * @param text
+     *            The document text.
+     * @return The text with every line terminated by a single new line
+     *         character.
+     */
+    public static char[] normalize(CharSequence text) {
+        char[] normal = new char[text.length() + 1];
+        int length = 0;
+        for (int i = 0, stop = text.length(); i < stop; i++) {
+            char ch = text.charAt(i);
+            if (ch == '\r') {
+                if (i + 1 < stop && text.charAt(i + 1) == '\n') {
+                    i++;
+                }
+                ch = '\n';
+            }
+            normal[length++] = ch;
+        }
+        if (length != 0 && normal[length - 1] != '\n') {
+            normal[length++] = '\n';
+        }
+        if (length != normal.length) {
+            char[] trimmed = new char[length];
+            System.arraycopy(normal, 0, trimmed, 0, length);
+            normal = trimmed;
+        }
+        return normal;
+    }
+
+    /**
+     * Mark each run of two or more consecutive plain lines on the first line
+     * of the run with the offset of the end of the run, so that the run can be
+     * emitted with a single write of the text when no block ends within it.
+     */
+    private void join() {
+        int i = 0;
+        while (i < lines.length) {
+            if (!lines[i].isPlain()) {
+                i++;
+                continue;
+            }
+            int start = i;
+            int indent = lines[i].indent;
+            while (i < lines.length && lines[i].isPlain()) {
+                indent = Math.min(indent, lines[i].indent);
+                i++;
+            }
+            if (i - start > 1) {
+                lines[start].runEnd = lines[i - 1].end + 1;
+                lines[start].runLength = i - start;
+                lines[start].runIndent = indent;
+            }
+        }
+    }
+
+    /**
+     * The text of a source encoded with a character set, with the offsets in
+     * the bytes of the characters at which the text is written, so that any
+     * run of the text can be written without encoding it again.
+     * <p>
+     * The text is written in runs that begin and end at the start and end of
+     * lines and at the start, at sign and end of commands, so the offsets in
+     * the bytes are only kept for those boundaries. An offset between
+     * boundaries is found by encoding the text from the boundary before it.
+     */
+    final static class Encoding {
+        /** An empty array of offsets. */
+        private final static int[] NO_OFFSETS = new int[0];
+
+        /** The character set. */
+        public final Charset charset;
+
+        /** The encoded text. */
+        public final byte[] bytes;
+
+        /** The text. */
+        private final char[] text;
+
+        /**
+         * The offsets in the text of the boundaries in ascending order, or
+         * null if each character is encoded as a single byte.
+         */
+        private final int[] boundaries;
+
+        /** The offset in the bytes of each boundary in turn. */
+        private final int[] offsets;
+
+        /**
+         * Encode the given text with the given character set.
+         *
+         * @param text
+         *            The text.
+         * @param lines
+         *            The parsed lines of the text.
+         * @param charset
+         *            The character set.
+         */
+        public Encoding(char[] text, Line[] lines, Charset charset) {
+            this.charset = charset;
+            this.text = text;
+            CharsetEncoder encoder = newEncoder(charset);
+            ByteBuffer out = ByteBuffer.allocate((int) Math.ceil(encoder.maxBytesPerChar() * (text.length + 1)));
+            int[] boundaries = null;
+            int[] offsets = NO_OFFSETS;
+            encoder.encode(CharBuffer.wrap(text), out, true);
+            encoder.flush(out);
+            // Unless every character was encoded as a single byte, encode the
+            // text again a run at a time to find the offsets of boundaries.
+            if (out.position() != text.length || hasSurrogates(text)) {
+                encoder.reset();
+                out.clear();
+                boundaries = getBoundaries(lines, text.length);
+                offsets = new int[boundaries.length];
+                CharBuffer in = CharBuffer.wrap(text);
+                for (int i = 0; i < boundaries.length; i++) {
+                    in.limit(boundaries[i]);
+                    encoder.encode(in, out, boundaries[i] == text.length);
+                    offsets[i] = out.position();
+                }
+                encoder.flush(out);
+                offsets[boundaries.length - 1] = out.position();
+            }
+            this.boundaries = boundaries;
+            this.offsets = offsets;
+            this.bytes = new byte[out.position()];
+            out.flip();
+            out.get(bytes);
+        }
+
+        /**
+         * Get the offsets in the text of the start and end of each line and
+         * the start, at sign and end of each command, in ascending order,
+         * beginning with zero and ending with the length of the text.
+         *
+         * @param lines
+         *            The parsed lines of the text.
+         * @param length
+         *            The length of the text.
+         * @return The boundaries.
+         */
+        private static int[] getBoundaries(Line[] lines, int length) {
+            int count = 2;
+            for (Line line : lines) {
+                count += 1 + line.commands.length * 3;
+            }
+            int[] boundaries = new int[count];
+            int size = 0;
+            boundaries[size++] = 0;
+            for (Line line : lines) {
+                for (Command command : line.commands) {
+                    boundaries[size++] = command.start;
+                    boundaries[size++] = command.at;
+                    boundaries[size++] = command.end;
+                }
+                boundaries[size++] = line.end + 1;
+            }
+            boundaries[size++] = length;
+            Arrays.sort(boundaries, 0, size);
+            int unique = 0;
+            for (int i = 0; i < size; i++) {
+                if (unique == 0 || boundaries[unique - 1] != boundaries[i]) {
+                    boundaries[unique++] = boundaries[i];
+                }
+            }
+            int[] trimmed = new int[unique];
+            System.arraycopy(boundaries, 0, trimmed, 0, unique);
+            return trimmed;
+        }
+
+        /**
+         * Determine whether the given text contains any surrogate characters,
+         * which together with their pair may be encoded as a single byte.
+         *
+         * @param text
+         *            The text.
+         * @return True if the text contains a surrogate character.
+         */
+        private static boolean hasSurrogates(char[] text) {
+            for (int i = 0; i < text.length; i++) {
+                if (text[i] >= Character.MIN_SURROGATE && text[i] <= Character.MAX_SURROGATE) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Create an encoder for the given character set that replaces
+         * characters that cannot be encoded.
+         *
+         * @param charset
+         *            The character set.
+         * @return A new encoder.
+         */
+        public static CharsetEncoder newEncoder(Charset charset) {
+            return charset.newEncoder()
+                          .onMalformedInput(CodingErrorAction.REPLACE)
+                          .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        }
+
+        /**
+         * Get the offset in the bytes of the character at the given offset in
+         * the text.
+         *
+         * @param offset
+         *            The offset in the text.
+         * @return The offset in the bytes.
+         */
+        public int offset(int offset) {
+            if (boundaries == null) {
+                return offset;
+            }
+            int index = Arrays.binarySearch(boundaries, offset);
+            if (index >= 0) {
+                return offsets[index];
+            }
+            int boundary = -index - 2;
+            CharsetEncoder encoder = newEncoder(charset);
+            ByteBuffer out = ByteBuffer.allocate((int) Math.ceil(encoder.maxBytesPerChar() * (offset - boundaries[boundary])));
+            encoder.encode(CharBuffer.wrap(text, boundaries[boundary], offset - boundaries[boundary]), out, false);
+            return offsets[boundary] + out.position();
+        }
+    }
+
+    /**
+     * The text of a source as a key in a map of sources by content.
+     */
+    final static class Content {
+        /** The text. */
+        public final char[] text;
+
+        /** The hash code of the text. */
+        private final int hashCode;
+
+        /**
+         * Create a key for the given text.
+         *
+         * @param text
+         *            The text.
+         */
+        public Content(char[] text) {
+            this.text = text;
+            this.hashCode = Arrays.hashCode(text);
+        }
+
+        /**
+         * Content is equal to other content with the same text.
+         *
+         * @param object
+         *            The object to compare.
+         * @return True if the object is content with the same text.
+         */
+        @Override
+        public boolean equals(Object object) {
+            if (object instanceof Content) {
+                Content content = (Content) object;
+                return hashCode == content.hashCode && Arrays.equals(text, content.text);
+            }
+            return false;
+        }
+
+        /**
+         * Get the hash code of the text.
+         *
+         * @return The hash code.
+         */
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package com.goodworkalan.stencil;
+
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * A map of the sources of loaded pages by content, so that pages read from
+ * different URIs with identical text share a single copy of the text and its
+ * parsed lines. A source is held only for as long as a page refers to it.
+ *
+ * @author Alan Gutierrez
+ */
+class SourceCache {
+    /** The sources by content. */
+    private final Map<Source.Content, WeakReference<Source>> sources = new WeakHashMap<Source.Content, WeakReference<Source>>();
+
+    /**
+     * Get the source for the given document text, parsing the text only if
+     * no page with the same text is loaded.
+     *
+     * @param text
+     *            The document text.
+     * @return The source.
+     */
+    public Source get(CharSequence text) {
+        Source.Content content = new Source.Content(Source.normalize(text));
+        Source source = find(content);
+        if (source == null) {
+            source = new Source(content);
+            synchronized (sources) {
+                Source existing = find(content);
+                if (existing == null) {
+                    sources.put(content, new WeakReference<Source>(source));
+                } else {
+                    source = existing;
+                }
+            }
+        }
+        return source;
+    }
+
+    /**
+     * Find the source with the given content.
+     *
+     * @param content
+     *            The content.
+     * @return The source or null if there is no source with the content.
+     */
+    private Source find(Source.Content content) {
+        synchronized (sources) {
+            WeakReference<Source> reference = sources.get(content);
+            return reference == null ? null : reference.get();
+        }
+    }
+}
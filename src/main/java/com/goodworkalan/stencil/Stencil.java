@@ -1,8 +1,5 @@
 package com.goodworkalan.stencil;
 
-import java.util.HashMap;
-import java.util.Map;
-
 /**
  * A stencil definition.
  * 
@@ -15,19 +12,13 @@ class Stencil {
     /** The offset of the second line in the list of nodes. */
     public final int index;
 
-    /** The remaining part of the first line. */
-    public final String after;
+    /** The line to resume or null to begin with the line at the index. */
+    public final Line line;
     
     public final int count;
     
     public final int indent;
 
-    /** The namespace URIs declared when the stencil was declared. */
-    public Map<String, String> namespaceURIs = new HashMap<String, String>();
-
-    /** The prefixes declared when the stencil was declared. */
-    public Map<String, String> prefixes = new HashMap<String, String>();
-
     /**
      * Create a stencil using the nodes at the given index in the given list of
      * in order document events.
@@ -42,23 +33,27 @@ class Stencil {
         this.count = 0;
         this.index = 0;
         this.indent = 0;
-        this.after = null;
+        this.line = null;
     }
 
     /**
-     * Create a stencil that processes the remaining part of a line given by
-     * after, and resuming at the given index.
+     * Create a stencil that processes the remaining part of the given line
+     * after the given count of commands, and resuming at the given index.
      * 
      * @param page
      *            The page.
-     * @param after
-     *            The remainder of the current line to process.
+     * @param line
+     *            The current line to process.
      * @param index
      *            The next index to process.
+     * @param count
+     *            The count of commands of the line already processed.
+     * @param indent
+     *            The indent of the current line.
      */
-    public Stencil(Page page, String after, int index, int count, int  indent) {
+    public Stencil(Page page, Line line, int index, int count, int  indent) {
         this.page = page;
-        this.after = after;
+        this.line = line;
         this.index = index;
         this.count = count;
         this.indent = indent;
@@ -0,0 +1,79 @@
+package com.goodworkalan.stencil;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.net.URI;
+import java.util.Map;
+
+import com.goodworkalan.ilk.inject.InjectorBuilder;
+import com.goodworkalan.stencil.clap.Handler;
+
+/**
+ * Compiles a tree of stencils ahead of time from the command line and writes
+ * the results to a compiled cache file that can be bundled with an
+ * application and read with
+ * {@link StencilFactory#readCompiledCache(java.net.URL)}. Every stencil is
+ * verified, and if any stencil fails, the errors are reported and the
+ * compiler exits with a non-zero status, so that a build that runs it fails.
+ * <p>
+ * The compiler is a plain main class. It is not a step of the project build
+ * defined by the cafe build module, which must run it as it would run any
+ * other Java program.
+ * <p>
+ * The compiler takes the root URI, the glob pattern of the stencils beneath
+ * the root, and the path of the compiled cache file. The root URI should be
+ * the URI the application uses to load the stencils, such as a
+ * <code>clap</code> URI of a class path prefix, since the compiled cache
+ * records stencils by URI.
+ * 
+ * <pre>
+ * java com.goodworkalan.stencil.StencilCompiler clap://thread/com/example/stencils/ '**&#47;*.txt' stencils.cache
+ * </pre>
+ *
+ * @author Alan Gutierrez
+ */
+public class StencilCompiler {
+    /**
+     * Compile the stencils named by the given arguments and exit with the
+     * status of the compilation.
+     *
+     * @param args
+     *            The root URI, the glob pattern and the compiled cache path.
+     */
+    public static void main(String[] args) {
+        System.exit(compile(args, System.err));
+    }
+
+    /**
+     * Compile the stencils named by the given arguments, reporting errors to
+     * the given stream.
+     *
+     * @param args
+     *            The root URI, the glob pattern and the compiled cache path.
+     * @param err
+     *            The stream for error messages.
+     * @return Zero if every stencil compiled, non-zero otherwise.
+     */
+    public static int compile(String[] args, PrintStream err) {
+        if (args.length != 3) {
+            err.println("usage: StencilCompiler <root> <glob> <cache>");
+            return 2;
+        }
+        StencilFactory stencils = new StencilFactory();
+        stencils.addResolver("clap", new Handler());
+        URI root = URI.create(args[0]);
+        if (root.getScheme() == null) {
+            root = new File(args[0]).getAbsoluteFile().toURI();
+        }
+        stencils.setBaseURI(root);
+        PrecompileReport report = stencils.precompile(new InjectorBuilder().newInjector(), root, args[1]);
+        if (!report.isSuccessful()) {
+            for (Map.Entry<URI, Throwable> failure : report.getFailures().entrySet()) {
+                err.println(failure.getKey() + ": " + failure.getValue().getMessage());
+            }
+            return 1;
+        }
+        stencils.writeCompiledCache(new File(args[2]));
+        return 0;
+    }
+}
@@ -1,36 +1,48 @@
 package com.goodworkalan.stencil;
 
-import static com.goodworkalan.ilk.Types.getActualType;
 import static com.goodworkalan.ilk.Types.getRawClass;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.Writer;
 import java.lang.annotation.Annotation;
+import java.lang.ref.WeakReference;
 import java.lang.reflect.Constructor;
-import java.lang.reflect.Field;
-import java.lang.reflect.Method;
-import java.lang.reflect.ParameterizedType;
 import java.lang.reflect.Type;
-import java.lang.reflect.TypeVariable;
 import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.net.URLConnection;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.ListIterator;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
-import java.util.regex.Matcher;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Pattern;
 
 import org.xml.sax.SAXException;
@@ -44,12 +56,6 @@ import com.goodworkalan.ilk.inject.InjectorBuilder;
 import com.goodworkalan.ilk.inject.Vendor;
 import com.goodworkalan.ilk.inject.alias.AliasVendor;
 import com.goodworkalan.ilk.loader.IlkLoader;
-import com.goodworkalan.permeate.ParseException;
-import com.goodworkalan.permeate.Part;
-import com.goodworkalan.permeate.Path;
-import com.goodworkalan.reflective.getter.Getter;
-import com.goodworkalan.reflective.getter.Getters;
-import com.goodworkalan.utility.Primitives;
 
 /**
  * Generates Stencil output using Stencils identified by URIs.
@@ -63,19 +69,96 @@ public class StencilFactory {
     /** The namespace URI for attribute variables. */
     public final static String STENCIL_ATTRIBUTE_URI = "http://stencil.goodworkalan.com:2010/stencil/variable";
     
+    /** The pattern of a qualified Java class name. */
+    private final static Pattern IDENTIFIER = Pattern.compile("[$_\\w][$_\\w\\d]+(?:\\.[$_\\w][$_\\w\\d]+)");
+
+    /** The pattern of the whitespace between the fields of an escape table. */
+    private final static Pattern WHITESPACE = Pattern.compile("\\s+");
+
+    /** The greatest capacity of a string builder kept for reuse by a thread. */
+    private final static int MAXIMUM_POOLED_BUILDER = 256 * 1024;
+
     /** The base URI from which resource URIs are resolved. */
     private URI baseURI;
     
     /** Whether to check if a URI resource is dirty and rebuild the stencil. */
     private boolean checkDirty;
+    
+    /** Whether to verify all branches of a stencil when it is loaded. */
+    private boolean verify;
+    
+    /** The character set of stencils and escape tables. */
+    private Charset charset = Charset.forName("UTF-8");
+
+    /** The pool of buffers for renders to output streams and channels. */
+    private BufferPool bufferPool = new BufferPool(8192);
+
+    /** The greatest number of pooled buffers held by a render. */
+    private int bufferCount = 8;
+
+    /** When a render to an output stream or channel writes its buffers. */
+    private FlushPolicy flushPolicy = FlushPolicy.FULL;
+
+    /** Whether to flush the output after the first top level stencil call. */
+    private boolean flushAfterFirstStencil;
+    
+    /** The interval in milliseconds of the background dirty check or zero. */
+    private long checkDirtyInterval;
+    
+    /** The executor that checks for dirty stencils in the background or null. */
+    private ScheduledExecutorService dirtyChecker;
 
     /** The map of protocols to resource resolvers. */
     private final Map<String, ResourceResolver> resourceResolvers = new ConcurrentHashMap<String, ResourceResolver>();
 
     private static final Diffuser diffuser = new Diffuser();
     
-    /** The cache of compiled and verified stencils. */
-    private final ConcurrentMap<URI, Page> stencils = new ConcurrentHashMap<URI, Page>();
+    /**
+     * The cache of compiled and verified stencils, which forgets the
+     * dependencies of the pages that leave it.
+     */
+    private final PageCache stencils = new PageCache() {
+        @Override
+        protected void dropped(URI uri, Collection<URI> dependencies) {
+            forget(uri, dependencies);
+        }
+    };
+
+    /** The parsed text of the loaded pages shared by content. */
+    private final SourceCache sources = new SourceCache();
+    
+    /** The compilations restored from a compiled cache file or null. */
+    private volatile CompiledCache compiledCache;
+    
+    /** The pages being loaded by URI. */
+    private final ConcurrentMap<URI, Loader> loaders = new ConcurrentHashMap<URI, Loader>();
+
+    /** The pages being verified outside of a load. */
+    private final ConcurrentMap<Page, Loader> verifiers = new ConcurrentHashMap<Page, Loader>();
+
+    /**
+     * The load or verification each thread is waiting on, so that a wait that
+     * would close a cycle of threads waiting on each other is detected.
+     */
+    private final Map<Thread, Loader> waits = new HashMap<Thread, Loader>();
+    
+    /** The cache of path accessors by context type and path expression. */
+    private final ConcurrentMap<Type, ConcurrentMap<String, Accessor>> accessors = new ConcurrentHashMap<Type, ConcurrentMap<String, Accessor>>();
+    
+    /** The cache of escape tables by table URI. */
+    private final ConcurrentMap<URI, EscapeTable> escapeTables = new ConcurrentHashMap<URI, EscapeTable>();
+    
+    /** The URIs of the pages that depend on a resource by resource URI. */
+    private final ConcurrentMap<URI, ConcurrentMap<URI, Boolean>> dependents = new ConcurrentHashMap<URI, ConcurrentMap<URI, Boolean>>();
+    
+    /** The cache of escapers by escaper class. */
+    private final ConcurrentMap<Class<?>, Escaper> escapers = new ConcurrentHashMap<Class<?>, Escaper>();
+    
+    /** The stack of levels reused by each render on the current thread. */
+    private final ThreadLocal<Levels<?>> levels = new ThreadLocal<Levels<?>>();
+
+    /** The string builder of each thread reused by renders to a string. */
+    private final ThreadLocal<StringBuilder> builders = new ThreadLocal<StringBuilder>();
     
     /**
      * Add a resource resolver for the given protocol scheme. The protocol
@@ -132,6 +215,548 @@ public class StencilFactory {
         this.checkDirty = checkDirty;
     }
 
+    /**
+     * Get the maximum count of characters held by the cached stencils.
+     * 
+     * @return The maximum weight of the stencil cache.
+     */
+    public long getMaximumCacheWeight() {
+        return stencils.getMaximumWeight();
+    }
+
+    /**
+     * Set the maximum count of characters held by the cached stencils. When
+     * the cache is over weight the least recently used stencils are evicted.
+     * The default is no maximum.
+     * 
+     * @param maximumWeight
+     *            The maximum weight of the stencil cache.
+     */
+    public void setMaximumCacheWeight(long maximumWeight) {
+        stencils.setMaximumWeight(maximumWeight);
+    }
+
+    /**
+     * Get whether stencils evicted from the cache are kept as soft references
+     * until they are collected.
+     * 
+     * @return True if evicted stencils are kept as soft references.
+     */
+    public boolean isSoftCache() {
+        return stencils.isSoft();
+    }
+
+    /**
+     * Set whether stencils evicted from the cache are kept as soft references
+     * until they are collected, so that they can be restored without being
+     * loaded again if memory allows.
+     * 
+     * @param soft
+     *            If true, evicted stencils are kept as soft references.
+     */
+    public void setSoftCache(boolean soft) {
+        stencils.setSoft(soft);
+    }
+
+    /**
+     * Get a snapshot of the hit, miss, load and eviction statistics of the
+     * stencil cache.
+     * 
+     * @return The cache statistics.
+     */
+    public CacheStatistics getCacheStatistics() {
+        return stencils.getStatistics();
+    }
+
+    /**
+     * Get the interval in milliseconds at which cached stencils are checked
+     * for changes in the background, or zero if they are not.
+     * 
+     * @return The background dirty check interval in milliseconds.
+     */
+    public synchronized long getCheckDirtyInterval() {
+        return checkDirtyInterval;
+    }
+
+    /**
+     * Set the interval at which cached stencils are checked for changes by a
+     * background thread. A stencil that has changed is evicted from the cache,
+     * so that it is loaded again by the next render, and rendering never has
+     * to touch the resource to learn that nothing has changed. Stencils read
+     * from files are checked by the last modified time of the file. Stencils
+     * read from other URLs are checked by the last modified time reported by
+     * a URL connection.
+     * <p>
+     * This is an alternative to {@link #setCheckDirty(boolean)}, which checks
+     * the stencil resource on every render. Setting an interval of zero, or
+     * calling {@link #close()}, stops the background thread. The background
+     * thread does not keep the factory from being collected, and stops itself
+     * when the factory is collected.
+     * 
+     * @param interval
+     *            The interval or zero to stop checking in the background.
+     * @param unit
+     *            The unit of the interval.
+     */
+    public synchronized void setCheckDirtyInterval(long interval, TimeUnit unit) {
+        if (dirtyChecker != null) {
+            dirtyChecker.shutdownNow();
+            dirtyChecker = null;
+        }
+        checkDirtyInterval = unit.toMillis(interval);
+        if (checkDirtyInterval > 0) {
+            dirtyChecker = DirtyChecker.start(this, checkDirtyInterval);
+        }
+    }
+
+    /**
+     * Stop checking cached stencils for changes in the background, releasing
+     * the background thread. The factory can still be used to render
+     * stencils after it is closed.
+     */
+    public synchronized void close() {
+        setCheckDirtyInterval(0, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Evict each cached page and escape table whose resource has been modified
+     * since it was loaded, along with the pages that depend on it. Pages that
+     * have been evicted but are still kept as soft references are checked as
+     * well, so that they are not returned to the cache stale. This is the
+     * check run in the background at the check dirty interval.
+     */
+    void evictDirty() {
+        for (Page page : stencils.values()) {
+            if (isDirty(page.url, page.lastModified) && stencils.peek(page.uri) == page) {
+                invalidate(page.uri);
+            }
+        }
+        for (Map.Entry<URI, EscapeTable> entry : escapeTables.entrySet()) {
+            if (isDirty(entry.getValue().url, entry.getValue().lastModified)) {
+                invalidate(entry.getKey());
+            }
+        }
+    }
+
+    /**
+     * Determine whether the resource at the given URL has been modified after
+     * the given last modified time. A resource that cannot be checked is not
+     * considered dirty.
+     * 
+     * @param url
+     *            The URL.
+     * @param lastModified
+     *            The last modified time when the resource was read.
+     * @return True if the resource has been modified.
+     */
+    private static boolean isDirty(URL url, long lastModified) {
+        try {
+            return getLastModified(url) > lastModified;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    /**
+     * Record that the given page depends on the resource at the given URI, an
+     * imported page or an escape table, so that the page is evicted when the
+     * resource changes.
+     * 
+     * @param page
+     *            The page.
+     * @param dependency
+     *            The URI of the resource.
+     */
+    private void depend(Page page, URI dependency) {
+        if (page.addDependency(dependency)) {
+            for (;;) {
+                ConcurrentMap<URI, Boolean> pages = dependents.get(dependency);
+                if (pages == null) {
+                    pages = new ConcurrentHashMap<URI, Boolean>();
+                    ConcurrentMap<URI, Boolean> existing = dependents.putIfAbsent(dependency, pages);
+                    if (existing != null) {
+                        pages = existing;
+                    }
+                }
+                // The map may have been forgotten while empty.
+                synchronized (pages) {
+                    if (dependents.get(dependency) == pages) {
+                        pages.put(page.uri, Boolean.TRUE);
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Forget that the page at the given URI depends on the given resources,
+     * after the page has left the page cache, unless the page is being loaded
+     * again or a page for the URI with the same dependency is cached again.
+     * The record of a resource is removed when no page depends on it.
+     * 
+     * @param uri
+     *            The URI of the page.
+     * @param dependencies
+     *            The URIs of the resources the page depended on.
+     */
+    private void forget(URI uri, Collection<URI> dependencies) {
+        if (loaders.containsKey(uri)) {
+            return;
+        }
+        Page current = stencils.peek(uri);
+        for (URI dependency : dependencies) {
+            if (current == null || !current.getDependencies().contains(dependency)) {
+                ConcurrentMap<URI, Boolean> pages = dependents.get(dependency);
+                if (pages != null) {
+                    synchronized (pages) {
+                        pages.remove(uri);
+                        if (pages.isEmpty()) {
+                            dependents.remove(dependency, pages);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Evict the page or escape table at the given URI from the cache, and
+     * evict every page that depends on it, directly or through other pages.
+     * Pages that do not depend on the resource stay cached.
+     * 
+     * @param uri
+     *            The URI of the page or escape table.
+     */
+    private void invalidate(URI uri) {
+        escapeTables.remove(uri);
+        Page page = stencils.remove(uri);
+        if (page != null) {
+            for (URI dependency : page.getDependencies()) {
+                ConcurrentMap<URI, Boolean> pages = dependents.get(dependency);
+                if (pages != null) {
+                    pages.remove(uri);
+                }
+            }
+        }
+        ConcurrentMap<URI, Boolean> pages = dependents.remove(uri);
+        if (pages != null) {
+            for (URI dependent : pages.keySet()) {
+                invalidate(dependent);
+            }
+        }
+    }
+
+    /**
+     * Get the last modified time of the resource at the given URL. The last
+     * modified time of a file is read from the file system without opening
+     * the file.
+     * 
+     * @param url
+     *            The URL.
+     * @return The last modified time.
+     * @throws IOException
+     *             For any I/O error.
+     * @throws URISyntaxException
+     *             If a file URL is not a valid URI.
+     */
+    private static long getLastModified(URL url) throws IOException, URISyntaxException {
+        if ("file".equals(url.getProtocol())) {
+            return new File(url.toURI()).lastModified();
+        }
+        URLConnection connection = url.openConnection();
+        connection.setUseCaches(false);
+        return connection.getLastModified();
+    }
+
+    /**
+     * Get the character set used to decode stencils and escape tables.
+     * 
+     * @return The character set.
+     */
+    public synchronized Charset getCharset() {
+        return charset;
+    }
+
+    /**
+     * Set the character set used to decode stencils and escape tables. The
+     * default is UTF-8, regardless of the default character set of the
+     * platform.
+     * 
+     * @param charset
+     *            The character set.
+     */
+    public synchronized void setCharset(Charset charset) {
+        this.charset = charset;
+    }
+
+    /**
+     * Get the size of the buffers used by renders to output streams and
+     * channels.
+     * 
+     * @return The buffer size.
+     */
+    public synchronized int getBufferSize() {
+        return bufferPool.getBufferSize();
+    }
+
+    /**
+     * Set the size of the buffers used by renders to output streams and
+     * channels. The default is 8192 bytes. A buffer must be able to hold the
+     * longest encoding of a character, so the size must be at least 16 bytes.
+     * 
+     * @param bufferSize
+     *            The buffer size.
+     * @exception IllegalArgumentException
+     *                If the buffer size is less than 16 bytes.
+     */
+    public synchronized void setBufferSize(int bufferSize) {
+        if (bufferSize < 16) {
+            throw new IllegalArgumentException();
+        }
+        if (bufferSize != bufferPool.getBufferSize()) {
+            bufferPool = new BufferPool(bufferSize);
+        }
+    }
+
+    /**
+     * Get the greatest number of buffers a render to an output stream or
+     * channel will fill before it writes them.
+     * 
+     * @return The buffer count.
+     */
+    public synchronized int getBufferCount() {
+        return bufferCount;
+    }
+
+    /**
+     * Set the greatest number of buffers a render to an output stream or
+     * channel will fill before it writes them, bounding the memory held by
+     * each render. The default is 8.
+     * 
+     * @param bufferCount
+     *            The buffer count.
+     */
+    public synchronized void setBufferCount(int bufferCount) {
+        this.bufferCount = bufferCount;
+    }
+
+    /**
+     * Get when a render to an output stream or channel writes its buffers.
+     * 
+     * @return The flush policy.
+     */
+    public synchronized FlushPolicy getFlushPolicy() {
+        return flushPolicy;
+    }
+
+    /**
+     * Set when a render to an output stream or channel writes its buffers.
+     * The default is to write each buffer as it fills.
+     * 
+     * @param flushPolicy
+     *            The flush policy.
+     */
+    public synchronized void setFlushPolicy(FlushPolicy flushPolicy) {
+        this.flushPolicy = flushPolicy;
+    }
+
+    /**
+     * Get whether the output of a render is flushed when the first stencil
+     * called by the page being rendered returns.
+     * 
+     * @return True if the output is flushed after the first stencil.
+     */
+    public synchronized boolean isFlushAfterFirstStencil() {
+        return flushAfterFirstStencil;
+    }
+
+    /**
+     * Set whether the output of a render is flushed when the first stencil
+     * called by the page being rendered returns, so that the output of a
+     * leading stencil, such as the head of a document, reaches the client
+     * before the rest of the page is rendered.
+     * 
+     * @param flushAfterFirstStencil
+     *            If true, the output is flushed after the first stencil.
+     */
+    public synchronized void setFlushAfterFirstStencil(boolean flushAfterFirstStencil) {
+        this.flushAfterFirstStencil = flushAfterFirstStencil;
+    }
+
+    /**
+     * Create an output that writes to the given channel with the buffer pool,
+     * buffer count and flush policy of this factory.
+     * 
+     * @param channel
+     *            The channel.
+     * @param stream
+     *            The output stream written by the channel or null.
+     * @param charset
+     *            The character set.
+     * @return A new output.
+     */
+    private synchronized Output newOutput(WritableByteChannel channel, OutputStream stream, Charset charset) {
+        return new ByteOutput(channel, stream, charset, bufferPool, bufferCount, flushPolicy);
+    }
+
+    /**
+     * Get whether to verify all branches of a stencil when it is loaded.
+     * 
+     * @return True if stencils are verified when they are loaded.
+     */
+    public synchronized boolean isVerify() {
+        return verify;
+    }
+
+    /**
+     * Set whether to verify all branches of a stencil when it is loaded. When
+     * true, a stencil is verified by a static analysis that checks every path
+     * of every branch against the types bound by the stencil, exactly once,
+     * when the stencil is loaded, so that type errors are reported before the
+     * stencil is emitted. The paths resolved by the analysis are cached so that
+     * emitting the stencil performs no further type reasoning.
+     * 
+     * @param verify
+     *            If true, stencils are verified when they are loaded.
+     */
+    public synchronized void setVerify(boolean verify) {
+        this.verify = verify;
+    }
+
+    /**
+     * Read the results of compiling stencils saved by
+     * {@link #writeCompiledCache(File)}, possibly by another process. When a
+     * stencil is loaded and its content has the same hash as the content that
+     * was saved, it is given the saved stencil definitions and dependencies,
+     * and if it was verified when it was saved, it is not verified again,
+     * unless a page it imports, an escape table it uses or a class it
+     * references has changed since. If the file does not exist, nothing is
+     * read.
+     * 
+     * @param file
+     *            The compiled cache file.
+     */
+    public void readCompiledCache(File file) {
+        if (file.exists()) {
+            try {
+                compiledCache = CompiledCache.read(file);
+            } catch (IOException e) {
+                throw new Danger(e, StencilFactory.class, "cannotReadCompiledCache", file);
+            }
+        }
+    }
+
+    /**
+     * Read the results of compiling stencils saved by
+     * {@link #writeCompiledCache(File)} from the given URL, such as a compiled
+     * cache written by {@link StencilCompiler} at build time and bundled as a
+     * class path resource.
+     * 
+     * @param url
+     *            The compiled cache URL.
+     */
+    public void readCompiledCache(URL url) {
+        try {
+            compiledCache = CompiledCache.read(url);
+        } catch (IOException e) {
+            throw new Danger(e, StencilFactory.class, "cannotReadCompiledCache", url);
+        }
+    }
+
+    /**
+     * Save the results of compiling the stencils in the cache to the given
+     * file, so that a later process can read them with
+     * {@link #readCompiledCache(File)} and skip verifying stencils that have
+     * not changed.
+     * 
+     * @param file
+     *            The compiled cache file.
+     */
+    public void writeCompiledCache(File file) {
+        try {
+            CompiledCache.write(file, stencils.values(), this);
+        } catch (IOException e) {
+            throw new Danger(e, StencilFactory.class, "cannotWriteCompiledCache", file);
+        }
+    }
+
+    /**
+     * Load and verify every stencil beneath the given root URI whose path
+     * relative to the root matches the given glob pattern, so that the
+     * stencils are cached and any errors are found before the first render.
+     * The root URI is resolved against the base URI and must name either a
+     * file directory or a <code>clap</code> class path prefix. The stencils
+     * are compiled in parallel by a thread for each available processor.
+     * <p>
+     * In the glob pattern, <code>*</code> matches any characters except a
+     * slash, <code>**</code> matches any characters including slashes, and
+     * <code>?</code> matches a single character except a slash.
+     * 
+     * @param injector
+     *            The injector.
+     * @param root
+     *            The root URI.
+     * @param glob
+     *            The glob pattern.
+     * @return A report of the time taken to compile each stencil, including
+     *         the stencils that failed, and the errors raised by the
+     *         stencils that failed.
+     */
+    public PrecompileReport precompile(final Injector injector, URI root, String glob) {
+        long start = System.nanoTime();
+        URI resolved = getBaseURI().resolve(root).normalize();
+        List<URI> uris;
+        try {
+            uris = new StencilFinder(glob).find(resolved);
+        } catch (IOException e) {
+            throw new Danger(e, StencilFactory.class, "cannotFindStencils", resolved);
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "Stencil Precompiler");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        Map<URI, Long> timings = new LinkedHashMap<URI, Long>();
+        Map<URI, Throwable> failures = new LinkedHashMap<URI, Throwable>();
+        // Each compile records its time whether it succeeds or fails, and the
+        // time is read once its future is done.
+        final long[] elapsed = new long[uris.size()];
+        try {
+            List<Future<?>> futures = new ArrayList<Future<?>>();
+            for (int i = 0, stop = uris.size(); i < stop; i++) {
+                final int index = i;
+                final URI uri = uris.get(i);
+                futures.add(executor.submit(new Runnable() {
+                    public void run() {
+                        long start = System.nanoTime();
+                        try {
+                            verify(injector, getPage(injector, uri));
+                        } finally {
+                            elapsed[index] = System.nanoTime() - start;
+                        }
+                    }
+                }));
+            }
+            for (int i = 0, stop = uris.size(); i < stop; i++) {
+                try {
+                    futures.get(i).get();
+                } catch (ExecutionException e) {
+                    failures.put(uris.get(i), e.getCause());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new Danger(e, StencilFactory.class, "interrupted", resolved);
+                }
+                timings.put(uris.get(i), elapsed[i]);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        return new PrecompileReport(timings, failures, System.nanoTime() - start);
+    }
+
     /**
      * Execute the stencil at the given URI using the given injector to obtain
      * context objects emitting a document to the given output writer.
@@ -144,32 +769,254 @@ public class StencilFactory {
      *            The writer output.
      */
     public void stencil(Injector injector, URI uri, Writer output) {
-        URI resolved = baseURI.resolve(uri).normalize();
+        stencil(injector, uri, new WriterOutput(output));
+    }
+
+    /**
+     * Execute the stencil at the given URI using the given injector to obtain
+     * context objects emitting a document to the given output stream encoded
+     * with the given character set. The static text of each page is encoded
+     * once and reused by every render, so that only the values emitted by the
+     * render are encoded. The output stream is flushed but not closed. A
+     * character set that writes a byte order mark, such as UTF-16, cannot be
+     * used.
+     * 
+     * @param injector
+     *            The injector.
+     * @param uri
+     *            The URI.
+     * @param output
+     *            The output stream.
+     * @param charset
+     *            The character set.
+     */
+    public void stencil(Injector injector, URI uri, OutputStream output, Charset charset) {
+        stencil(injector, uri, newOutput(Channels.newChannel(output), output, charset));
+    }
+
+    /**
+     * Execute the stencil at the given URI using the given injector to obtain
+     * context objects emitting a document to the given channel encoded with
+     * the given character set. The static text of each page is encoded once
+     * and reused by every render, so that only the values emitted by the
+     * render are encoded. The channel is not closed. A character set that
+     * writes a byte order mark, such as UTF-16, cannot be used.
+     * 
+     * @param injector
+     *            The injector.
+     * @param uri
+     *            The URI.
+     * @param output
+     *            The channel.
+     * @param charset
+     *            The character set.
+     */
+    public void stencil(Injector injector, URI uri, WritableByteChannel output, Charset charset) {
+        stencil(injector, uri, newOutput(output, null, charset));
+    }
+
+    /**
+     * Execute the stencil at the given URI using the given injector to obtain
+     * context objects returning the emitted document as a string. The buffer
+     * of the document is sized by the percentile of the sizes of recent
+     * renders of the page, so that it seldom grows while the page renders,
+     * and is reused by the next render to a string on the same thread.
+     * 
+     * @param injector
+     *            The injector.
+     * @param uri
+     *            The URI.
+     * @return The document.
+     */
+    public String renderToString(Injector injector, URI uri) {
+        URI resolved = getBaseURI().resolve(uri).normalize();
+        Page page = getPage(injector, resolved);
+        int estimate = page.outputSize.estimate();
+        // Take the builder so that a render to a string started while
+        // rendering to a string gets a builder of its own.
+        StringBuilder builder = builders.get();
+        if (builder == null) {
+            builder = new StringBuilder(estimate);
+        } else {
+            builders.set(null);
+            builder.setLength(0);
+            builder.ensureCapacity(estimate);
+        }
+        try {
+            compile(injector, resolved, new Stencil(page, 0), new StringOutput(builder));
+            return builder.toString();
+        } finally {
+            if (builder.capacity() <= MAXIMUM_POOLED_BUILDER) {
+                builders.set(builder);
+            }
+        }
+    }
+
+    /**
+     * Execute the stencil at the given URI using the given injector to obtain
+     * context objects emitting a document to the given output.
+     * 
+     * @param injector
+     *            The injector.
+     * @param uri
+     *            The URI.
+     * @param output
+     *            The output.
+     */
+    private void stencil(Injector injector, URI uri, Output output) {
+        URI resolved = getBaseURI().resolve(uri).normalize();
+        compile(injector, resolved, new Stencil(getPage(injector, resolved), 0), output);
+    }
+
+    /**
+     * Get the page for the given absolute URI from the cache of pages, loading
+     * the page if it is not in the cache, or reloading it if dirty checking is
+     * enabled and the resource has changed since it was loaded.
+     * 
+     * @param injector
+     *            The injector.
+     * @param resolved
+     *            The absolute normalized URI of the stencil.
+     * @return The page.
+     */
+    private Page getPage(Injector injector, URI resolved) {
         Page page = stencils.get(resolved);
         if (page == null) {
-            page = compile(injector, uri, output);
-            stencils.put(resolved, page);
+            page = loadPage(injector, resolved, null);
         } else if (checkDirty) {
-            URL url;
+            long lastModified;
             try {
-                url = getURL(injector, resolved);
-            } catch (MalformedURLException e) {
-                throw new RuntimeException(e);
+                lastModified = getLastModified(getURL(injector, resolved));
+            } catch (Exception e) {
+                throw new Danger(e, StencilFactory.class, "cannotReadURL", resolved);
             }
-            URLConnection connection;
-            try {
-                connection = url.openConnection();
-            } catch (IOException e) {
-                throw new Danger(e, StencilFactory.class, "cannotReadURL", uri);
+            if (lastModified > page.lastModified) {
+                page = loadPage(injector, resolved, page);
             }
-            if (connection.getLastModified() > page.lastModified) {
-                page = compile(injector, uri, connection, output);
+        }
+        return page;
+    }
+
+    /**
+     * Load the page for the given absolute URI into the cache of pages,
+     * replacing the given stale page. Only one thread loads a page for a URI
+     * at a time. The other threads that ask for the same URI while it loads
+     * wait for that load to finish and share its page. Threads that ask for
+     * other URIs are not blocked. If the load fails, it is not remembered, so
+     * the next request for the URI tries again.
+     * <p>
+     * A load that would wait on a load that is itself waiting, directly or
+     * through other threads, on the page being loaded is reported as a
+     * circular import.
+     * 
+     * @param injector
+     *            The injector.
+     * @param resolved
+     *            The absolute normalized URI of the stencil.
+     * @param stale
+     *            The page to replace or null if the page is not cached.
+     * @return The loaded page.
+     */
+    private Page loadPage(final Injector injector, final URI resolved, final Page stale) {
+        Loader loader = new Loader(new Callable<Page>() {
+            public Page call() {
+                // Another thread may have finished loading the page after
+                // we looked for it and before we began loading it.
+                Page current = stencils.peek(resolved);
+                if (current != stale) {
+                    return current;
+                }
+                if (stale != null) {
+                    invalidate(resolved);
+                }
+                long start = System.nanoTime();
+                Page page = load(injector, resolved);
+                stencils.loaded(System.nanoTime() - start);
                 stencils.put(resolved, page);
-            } else {
-                compile(injector, uri, new Stencil(page, 0), output);
+                return page;
+            }
+        });
+        return run(loaders, resolved, loader, resolved);
+    }
+
+    /**
+     * Run the given task to load or verify a page unless a task for the same
+     * key is already running, in which case wait for the running task and
+     * share its page. The task is removed from the given map of tasks when it
+     * finishes.
+     * 
+     * @param <K>
+     *            The type of key.
+     * @param tasks
+     *            The running tasks by key.
+     * @param key
+     *            The key.
+     * @param task
+     *            The task to run.
+     * @param uri
+     *            The URI of the page for error messages.
+     * @return The page.
+     */
+    private <K> Page run(ConcurrentMap<K, Loader> tasks, K key, Loader task, URI uri) {
+        Loader running = tasks.putIfAbsent(key, task);
+        if (running == null) {
+            try {
+                task.run();
+            } finally {
+                tasks.remove(key, task);
+            }
+            running = task;
+        } else if (!running.isDone()) {
+            await(running, uri);
+        }
+        try {
+            return running.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new Danger(e, StencilFactory.class, "interrupted", uri);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new Danger(cause, StencilFactory.class, "cannotReadURL", uri);
+        }
+    }
+
+    /**
+     * Wait for the given task run by another thread to finish. If the thread
+     * running the task is waiting on a task run by a thread that is waiting,
+     * and so on, on a task run by the current thread, the wait would never
+     * end, so the cycle is reported as a circular import instead.
+     * 
+     * @param running
+     *            The running task.
+     * @param uri
+     *            The URI of the page for error messages.
+     */
+    private void await(Loader running, URI uri) {
+        Thread current = Thread.currentThread();
+        synchronized (waits) {
+            for (Loader task = running; task != null; task = waits.get(task.thread)) {
+                if (task.thread == current) {
+                    throw new Danger(StencilFactory.class, "circularImport", uri);
+                }
+            }
+            waits.put(current, running);
+        }
+        try {
+            running.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            // Reported by the caller.
+        } finally {
+            synchronized (waits) {
+                waits.remove(current);
             }
-        } else {
-            compile(injector, uri, new Stencil(page, 0), output);
         }
     }
 
@@ -180,15 +1027,8 @@ public class StencilFactory {
      *            The stack.
      * @return The value.
      */
-    private <T> Ilk.Box getSelected(LinkedList<Level<T>> stack) {
-        ListIterator<Level<T>> iterator = stack.listIterator(stack.size());
-        while (iterator.hasPrevious()) {
-            Level<T> level = iterator.previous();
-            if (level.instance != null) {
-                return level.instance;
-            }
-        }
-        return null;
+    private <T> Ilk.Box getSelected(Levels<T> stack) {
+        return stack.getLast().instance;
     }
 
     /**
@@ -199,15 +1039,8 @@ public class StencilFactory {
      *            The stack.
      * @return The boxed type of the context object.
      */
-    private <T> Ilk.Box getContext(LinkedList<Level<T>> stack) {
-        ListIterator<Level<T>> iterator = stack.listIterator(stack.size());
-        while (iterator.hasPrevious()) {
-            Level<T> level = iterator.previous();
-            if (level.ilk != null) {
-                return level.ilk;
-            }
-        }
-        return null;
+    private <T> Ilk.Box getContext(Levels<T> stack) {
+        return stack.getLast().ilk;
     }
 
     /**
@@ -220,12 +1053,9 @@ public class StencilFactory {
      *            The stack.
      * @return A map of class names to type keys.
      */
-    private <T> Map<String, Ilk.Key> getClasses(LinkedList<Level<T>> stack) {
-        Map<String, Ilk.Key> classes = new HashMap<String, Ilk.Key>();
-        for (Level<T> level : stack) {
-            classes.putAll(level.classes);
-        }
-        return classes;
+    private <T> Map<String, Ilk.Key> getClasses(Levels<T> stack) {
+        Map<String, Ilk.Key> classes = stack.getLast().classes;
+        return classes == null ? Collections.<String, Ilk.Key>emptyMap() : classes;
     }
 
     /**
@@ -237,16 +1067,8 @@ public class StencilFactory {
      *            The stack.
      * @return A map of class names to type keys.
      */
-    private <T> Escaper getEscaper(LinkedList<Level<T>> stack, String name) {
-        ListIterator<Level<T>> iterator = stack.listIterator(stack.size());
-        while (iterator.hasPrevious()) {
-            Level<T> level = iterator.previous();
-            Escaper escaper = level.escapers.get(name);
-            if (escaper != null) {
-                return escaper;
-            }
-        }
-        return null;
+    private <T> Escaper getEscaper(Levels<T> stack, String name) {
+        return stack.getLast().getEscaper(name);
     }
 
     /**
@@ -258,16 +1080,8 @@ public class StencilFactory {
      *            The qualified name of the stencil.
      * @return The boxed type of the context object.
      */
-    private <T> Stencil getStencil(LinkedList<Level<T>> stack, String name) {
-        ListIterator<Level<T>> iterator = stack.listIterator(stack.size());
-        while (iterator.hasPrevious()) {
-            Level<T> level = iterator.previous();
-            Stencil stencil = level.stencils.get(name);
-            if (stencil != null) {
-                return stencil;
-            }
-        }
-        return null;
+    private <T> Stencil getStencil(Levels<T> stack, String name) {
+        return stack.getLast().getStencil(name);
     }
 
     /**
@@ -277,15 +1091,8 @@ public class StencilFactory {
      *            The stack.
      * @return The top most injector.
      */
-    private <T> Injector getInjector(LinkedList<Level<T>> stack) {
-        ListIterator<Level<T>> iterator = stack.listIterator(stack.size());
-        for (;;) {
-            Level<T> level = iterator.previous();
-            Injector injector = level.injector;
-            if (injector != null) {
-                return injector;
-            }
-        }
+    private <T> Injector getInjector(Levels<T> stack) {
+        return stack.getLast().scope;
     }
 
     /**
@@ -324,95 +1131,342 @@ public class StencilFactory {
     }
 
     /**
-     * Compile and execute the stencil indicated by the given URI returning a
-     * stencil page for caching. The injector will be used to obtain context
-     * objects for the stencils.
+     * Get the escaper named by an escape command, either an escaper class or
+     * a table of character codes to escape sequences. Escapers created from
+     * tables are cached by the URI of the table and escapers created from
+     * classes are cached by class, so that a table is only read once no matter
+     * how many stencils use it. The page is recorded as a dependent of the
+     * table, and when checking for dirty stencils, a table that has changed is
+     * read again.
+     * 
+     * @param injector
+     *            The injector.
+     * @param classes
+     *            The classes imported into the current scope.
+     * @param key
+     *            The name to assign to the escaper.
+     * @param escaper
+     *            The escaper class name or the table URI.
+     * @param line
+     *            The line number of the escape command.
+     * @param page
+     *            The page of the escape command.
+     * @return The escaper.
+     * @throws IOException
+     *             For any I/O error reading the escape table.
+     */
+    private Escaper getEscaper(Injector injector, Map<String, Ilk.Key> classes, String key, String escaper, int line, Page page)
+    throws IOException {
+        URL url = null;
+        Class<?> escaperClass = null;
+        Ilk.Key classKey = classes.get(escaper);
+        if (classKey != null) {
+            escaperClass = getRawClass(classKey.type);
+        }
+        if (escaperClass == null) {
+            url = Thread.currentThread().getContextClassLoader().getResource(key);
+            if (url == null) {
+                try {
+                    if (IDENTIFIER.matcher(escaper).matches()) {
+                        escaperClass = Thread.currentThread().getContextClassLoader().loadClass(escaper);
+                    }
+                } catch (ClassNotFoundException e) {
+                }
+                if (escaperClass == null) {
+                    URI resource = getBaseURI().resolve(escaper);
+                    if (resource != null) {
+                        url = getURL(injector, resource);
+                    }
+                }
+            }
+        }
+        if (url != null) {
+            URI table;
+            try {
+                table = url.toURI();
+            } catch (URISyntaxException e) {
+                throw new Danger(e, StencilFactory.class, "cannotReadURL", url);
+            }
+            EscapeTable cached = getEscapeTable(url, table);
+            depend(page, table);
+            return cached.escaper;
+        }
+        page.addClass(escaperClass);
+        Escaper cached = escapers.get(escaperClass);
+        if (cached == null) {
+            try {
+                cached = (Escaper) escaperClass.newInstance();
+            } catch (Exception e) {
+                throw new Danger(e, StencilFactory.class, "cannotCreateEscaper", escaperClass, line, page.uri);
+            }
+            Escaper existing = escapers.putIfAbsent(escaperClass, cached);
+            if (existing != null) {
+                cached = existing;
+            }
+        }
+        return cached;
+    }
+
+    /**
+     * Get the escape table at the given URL, reading it if it is not cached
+     * or, when checking for dirty stencils, if it has changed since it was
+     * read. The table is hashed as it is read so that it can be fingerprinted
+     * in a compiled cache.
+     * 
+     * @param url
+     *            The URL of the table.
+     * @param table
+     *            The URI of the table.
+     * @return The escape table.
+     * @throws IOException
+     *             For any I/O error reading the escape table.
+     */
+    private EscapeTable getEscapeTable(URL url, URI table) throws IOException {
+        EscapeTable cached = escapeTables.get(table);
+        if (cached != null && checkDirty && isDirty(cached.url, cached.lastModified)) {
+            invalidate(table);
+            cached = null;
+        }
+        if (cached == null) {
+            Map<Integer, String> entities = new HashMap<Integer, String>();
+            URLConnection connection = url.openConnection();
+            DigestInputStream in = new DigestInputStream(connection.getInputStream(), CompiledCache.newDigest());
+            BufferedReader entityLines = new BufferedReader(new InputStreamReader(in, getCharset()));
+            try {
+                String entityLine;
+                while ((entityLine = entityLines.readLine()) != null) {
+                    String[] mapping = WHITESPACE.split(entityLine);
+                    entities.put(Integer.parseInt(mapping[0]), mapping[1]);
+                }
+            } finally {
+                entityLines.close();
+            }
+            cached = new EscapeTable(url, connection.getLastModified(), in.getMessageDigest().digest(), new CharCodeEscaper(entities));
+            escapeTables.put(table, cached);
+        }
+        return cached;
+    }
+
+    /**
+     * Determine whether the given URI names a cached escape table.
+     * 
+     * @param uri
+     *            The URI.
+     * @return True if the URI is the URI of a cached escape table.
+     */
+    boolean isEscapeTable(URI uri) {
+        return escapeTables.containsKey(uri);
+    }
+
+    /**
+     * Get the fingerprint of the escape table or page at the given URI, as
+     * recorded in a compiled cache. The fingerprint of an escape table is the
+     * hash of the table. The fingerprint of a page is only known once the
+     * page is verified, and covers the text of the page, the fingerprints of
+     * its dependencies and the hashes of the classes it references.
      * <p>
-     * If the content handler is not null, the stencil will be emitted to the
-     * given content, lexical and DTD handlers. The events for the lexical
-     * handler will not be emitted if the lexical handler is null. The events
-     * for the DTD handler will not be emitted if the DTD handler is null.
+     * If the given injector is not null, a page that is not cached is loaded
+     * and verified. Otherwise only cached pages are fingerprinted.
+     * 
+     * @param injector
+     *            The injector or null to fingerprint only cached pages.
+     * @param uri
+     *            The URI of the escape table or page.
+     * @param table
+     *            True if the URI names an escape table.
+     * @return The fingerprint or null if the resource cannot be read or the
+     *         page cannot be verified.
+     */
+    byte[] getFingerprint(Injector injector, URI uri, boolean table) {
+        if (table) {
+            try {
+                return getEscapeTable(uri.toURL(), uri).hash;
+            } catch (IOException e) {
+                return null;
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+        }
+        Page page;
+        if (injector == null) {
+            page = stencils.peek(uri);
+            if (page == null || !page.verified) {
+                return null;
+            }
+        } else {
+            try {
+                page = verify(injector, getPage(injector, uri));
+            } catch (Danger e) {
+                return null;
+            }
+        }
+        return getFingerprint(page);
+    }
+
+    /**
+     * Get the fingerprint of the given verified page, computing it from the
+     * cached pages and escape tables it depends on if it has not been computed
+     * since a dependency was added.
+     * 
+     * @param page
+     *            The page.
+     * @return The fingerprint or null if a dependency is no longer cached.
+     */
+    private byte[] getFingerprint(Page page) {
+        byte[] fingerprint = page.fingerprint;
+        if (fingerprint == null) {
+            MessageDigest digest = CompiledCache.newDigest();
+            digest.update(CompiledCache.hash(page));
+            for (URI dependency : new TreeSet<URI>(page.getDependencies())) {
+                byte[] hash = getFingerprint(null, dependency, isEscapeTable(dependency));
+                if (hash == null) {
+                    return null;
+                }
+                CompiledCache.update(digest, dependency.toString());
+                digest.update(hash);
+            }
+            Map<String, Class<?>> classes = new TreeMap<String, Class<?>>();
+            for (Class<?> type : page.getClasses()) {
+                classes.put(type.getName(), type);
+            }
+            for (Map.Entry<String, Class<?>> entry : classes.entrySet()) {
+                CompiledCache.update(digest, entry.getKey());
+                digest.update(CompiledCache.hash(entry.getValue()));
+            }
+            page.fingerprint = fingerprint = digest.digest();
+        }
+        return fingerprint;
+    }
+
+    /**
+     * Load the stencil indicated by the given URI returning a stencil page for
+     * caching. The injector will be used to obtain context objects for the
+     * stencils if the stencil is verified.
      * 
      * @param injector
      *            The injector.
      * @param uri
      *            The stencil URI.
-     * @param output
-     *            The output.
-     * @return The compiled stencil page.
+     * @return The loaded stencil page.
      */
-    private Page compile(Injector injector, URI uri, Writer output) {
+    private Page load(Injector injector, URI uri) {
         // Normalize the absolute URI.
         uri = getBaseURI().resolve(uri).normalize();
         // Load the document.
-        URLConnection connection;
+        URL url;
         try {
-            URL url = getURL(injector, uri);
-            connection = url.openConnection();
-        } catch (IOException e) {
+            url = getURL(injector, uri);
+        } catch (MalformedURLException e) {
             throw new Danger(e, StencilFactory.class, "cannotReadURL", uri);
         }
-        return compile(injector, uri, connection, output);
+        return load(injector, uri, url);
     }
 
     /**
-     * Compile and execute the stencil input stream of the given URL connection
-     * obtained from the given url returning a stencil page for caching. The
-     * injector will be used to obtain context objects for the stencils.
-     * <p>
-     * If the content handler is not null, the stencil will be emitted to the
-     * given content, lexical and DTD handlers. The events for the lexical
-     * handler will not be emitted if the lexical handler is null. The events
-     * for the DTD handler will not be emitted if the DTD handler is null.
+     * Load the stencil from the given URL obtained from the given URI
+     * returning a stencil page for caching. The stencil is decoded with the
+     * character set of this factory. A file is memory mapped, other resources
+     * are read from a URL connection. The lines of the stencil are parsed into
+     * commands when the page is created. If stencils are verified when they
+     * are loaded, the injector will be used to obtain context objects for the
+     * static analysis.
      * 
      * @param injector
      *            The injector.
      * @param uri
      *            The stencil URI.
-     * @param connection
-     *            A URL connection opened from a URL created from the URI.
-     * @param output
-     *            The output.
-     * @return The compiled stencil page.
+     * @param url
+     *            The URL obtained from the URI.
+     * @return The loaded stencil page.
      */
-    private Page compile(Injector injector, URI uri, URLConnection connection, Writer output) {
-        List<String> lines;
+    private Page load(Injector injector, URI uri, URL url) {
+        Charset charset = getCharset();
+        long lastModified;
+        CharBuffer text;
         try {
-            lines = new ArrayList<String>();
-            BufferedReader reader = new BufferedReader(new InputStreamReader(connection.getInputStream()));
-            String line;
-            while ((line = reader.readLine()) != null) {
-                lines.add(line);
+            if ("file".equals(url.getProtocol())) {
+                File file = new File(url.toURI());
+                lastModified = file.lastModified();
+                text = TextLoader.read(file, charset);
+            } else {
+                URLConnection connection = url.openConnection();
+                lastModified = connection.getLastModified();
+                text = TextLoader.read(connection.getInputStream(), charset);
             }
         } catch (IOException e) {
             throw new Danger(e, StencilFactory.class, "cannotReadURL", uri);
+        } catch (URISyntaxException e) {
+            throw new Danger(e, StencilFactory.class, "cannotReadURL", uri);
+        }
+        Page page = new Page(uri, url, lastModified, sources.get(text));
+        CompiledCache compiled = compiledCache;
+        if (compiled != null) {
+            URI[] dependencies = compiled.restore(this, injector, page);
+            if (dependencies != null) {
+                for (URI dependency : dependencies) {
+                    depend(page, dependency);
+                }
+            }
         }
-        return compile(injector, uri, new Stencil(new Page(uri, connection.getLastModified(), lines), 0), output);
+        if (!page.verified && isVerify()) {
+            verify(injector, page);
+        }
+        return page;
     }
 
-    /** The regular expression to match a start or end command. */
-    private final static Pattern COMMAND = Pattern.compile("^((?:[^@]|@@)*)@(@|[A-Z][a-zA-Z]+(?:\\.[A-Za-z][A-Za-z0-9]+)?)(?:!|\\(([^)]*)\\))?(.*)$");
+    /**
+     * Verify the given page with a static analysis of all of its branches,
+     * gathering the stencils it defines and resolving the paths it contains.
+     * Only one thread verifies a page at a time, the others wait for it, and
+     * a verification that would wait on itself through the pages it imports
+     * is reported as a circular import.
+     * 
+     * @param injector
+     *            The injector.
+     * @param page
+     *            The page.
+     * @return The verified page.
+     */
+    private Page verify(final Injector injector, final Page page) {
+        if (page.verified) {
+            return page;
+        }
+        Loader verifier = new Loader(new Callable<Page>() {
+            public Page call() {
+                if (!page.verified) {
+                    compile(injector, page.uri, new Stencil(page, 0), null);
+                    page.verified = true;
+                }
+                return page;
+            }
+        });
+        return run(verifiers, page, verifier, page.uri);
+    }
 
     /**
-     * Write the given string to the the given writer followed by a new line if
-     * the writer is not null.
+     * Write the text of the given source between the given offsets to the
+     * given output if the output is not null.
      * 
      * @param output
      *            The output.
-     * @param string
-     *            The string.
+     * @param source
+     *            The source.
+     * @param start
+     *            The offset of the first character to write.
+     * @param end
+     *            The offset after the last character to write.
      * @throws IOException
      *             For any I/O error.
      */
-    private void println(Writer output, String string) throws IOException {
-        if (output != null) {
-            output.write(string);
-            output.write("\n");
+    private void print(Output output, Source source, int start, int end) throws IOException {
+        if (output != null && start != end) {
+            output.write(source, start, end);
         }
     }
 
     /**
-     * Write the given string to the the given writer if the writer is not null.
+     * Write the given string to the the given output if the output is not
+     * null.
      * 
      * @param output
      *            The output.
@@ -421,7 +1475,7 @@ public class StencilFactory {
      * @throws IOException
      *             For any I/O error.
      */
-    private void print(Writer output, CharSequence string) throws IOException {
+    private void print(Output output, CharSequence string) throws IOException {
         if (output != null) {
             output.append(string);
         }
@@ -462,29 +1516,45 @@ public class StencilFactory {
     }
 
     /**
-     * Get the number of spaces by which the line is indented.
+     * Compile and possibly emit a section of a Stencil.
      * 
-     * @param line
-     *            The line.
-     * @return The number of spaces indented.
+     * @param <T>
+     *            Type variable used for variable substitution.
+     * @param injector
+     *            The injector.
+     * @param stack
+     *            The stack.
+     * @param stencil
+     *            The stencil.
+     * @param nested
+     *            The nested content.
+     * @param output
+     *            The writer.
+     * @return The index of the node after the last node processed.
+     * @throws SAXException
+     *             For any error raised by the parser.
      */
-    private int indent(String line) {
-        int count = 0, stop = line.length();
-        while (count < stop && Character.isWhitespace(line.charAt(count))) {
-            count++;
+    private <T> Stencil[] compile(Levels<T> stack, Stencil stencil, Stencil nested, String blockName, Output output)
+    throws IOException {
+        int blankLines = stack.getBlankLineCount();
+        try {
+            return compile(stack, blankLines, stencil, nested, blockName, output);
+        } finally {
+            stack.truncateBlankLines(blankLines);
         }
-        return count;
     }
 
     /**
-     * Compile and possibly emit a section of a Stencil.
+     * Compile and possibly emit a section of a Stencil holding back blank
+     * lines in the blank line buffer of the stack after the given count of
+     * blank lines held back by the invocations that called this one.
      * 
      * @param <T>
      *            Type variable used for variable substitution.
-     * @param injector
-     *            The injector.
      * @param stack
      *            The stack.
+     * @param blankLines
+     *            The count of blank lines held back by callers.
      * @param stencil
      *            The stencil.
      * @param nested
@@ -492,21 +1562,18 @@ public class StencilFactory {
      * @param output
      *            The writer.
      * @return The index of the node after the last node processed.
-     * @throws SAXException
-     *             For any error raised by the parser.
      */
-    private <T> Stencil[] compile(LinkedList<Level<T>> stack, Stencil stencil, Stencil nested, String blockName, Writer output)
+    private <T> Stencil[] compile(Levels<T> stack, int blankLines, Stencil stencil, Stencil nested, String blockName, Output output)
     throws IOException {
-        List<String> lines = stencil.page.lines;
+        Source source = stencil.page.source;
+        Line[] lines = source.lines;
         int index = stencil.index;
-        int stop = lines.size();
-        List<String> blankLines = new ArrayList<String>();
-        String after = stencil.after;
+        int stop = lines.length;
+        Line line = stencil.line;
         int count = stencil.count;
         int indent = stencil.indent;
         int blockCount = 0;
-        Stencil current = null;
-        LINES: while (after != null || index < stop) {
+        LINES: while (line != null || index < stop) {
             // Bothers me that I can't find a way to put the initialization
             // block before the while and remove the test for null after,
             // because it bothers me to have initialization within the loop that
@@ -517,80 +1584,91 @@ public class StencilFactory {
             // pass through the list of lines, we're jumping, not within this
             // one method, but definitely jumping around in the list of lines,
             // so we may as well make it readable.
-            String line; 
-            if (after == null) {
-                line = lines.get(index++);
-                if (isComment(line)) {
+            int text;
+            if (line == null) {
+                Line next = lines[index++];
+                if (next.comment) {
                     continue;
                 }
-                indent = indent(line);
+                indent = next.indent;
                 if (indent < stack.getLast().indent) {
-                    if (isWhitespace(line)) {
-                        blankLines.add(line);
+                    if (next.whitespace) {
+                        stack.addBlankLine(next);
                         continue;
                     } else if (stack.getLast().command.equals("If")) {
                         stack.removeLast();
                         if (!stack.getLast().skip) {
-                            for (String blankLine : blankLines) {
-                                println(output, blankLine);
+                            for (int i = blankLines, end = stack.getBlankLineCount(); i < end; i++) {
+                                Line blank = stack.getBlankLine(i);
+                                print(output, source, blank.start, blank.end + 1);
                             }
                         }
-                        blankLines.clear();
+                        stack.truncateBlankLines(blankLines);
                     } else if (stack.getLast().command.equals("Each")) {
                         if (output == null || !stack.getLast().each.hasNext()) {
                             stack.removeLast();
                         } else {
                             stack.getLast().instance = stack.getLast().actualizer.actual().box(stack.getLast().each.next());
                             index = stack.getLast().index;
-                            after = null; // stack.getLast().after;
                             continue;
                         }
                     }
                 } else {
                     if (!stack.getLast().skip) {
-                        for (String blankLine : blankLines) {
-                            println(output, blankLine);
+                        for (int i = blankLines, end = stack.getBlankLineCount(); i < end; i++) {
+                            Line blank = stack.getBlankLine(i);
+                            print(output, source, blank.start, blank.end + 1);
+                        }
+                    }
+                    stack.truncateBlankLines(blankLines);
+                    // A run of plain lines that does not end a block is
+                    // emitted with a single write.
+                    if (next.runLength != 0 && next.runIndent >= stack.getLast().indent) {
+                        if (!stack.getLast().skip) {
+                            print(output, source, next.start, next.runEnd);
                         }
+                        index += next.runLength - 1;
+                        indent = lines[index - 1].indent;
+                        continue;
                     }
-                    blankLines.clear();
                 }
-                after = line;
+                line = next;
                 count = 0;
+                text = line.start;
             } else {
-                line = after;
+                text = line.remainder(count);
             }
-            String terminal = null;
+            int after = text;
+            int terminal = -1;
             for (;;) {
-                current = new Stencil(stencil.page, after, index, count, indent);
                 if (indent < stack.getLast().indent) {
                     if (blockName != null && blockName.equals(stack.getLast().command)) {
                         stack.removeLast();
-                        return new Stencil[] { current, null };
+                        return new Stencil[] { new Stencil(stencil.page, line, index, count, indent), null };
                     }
                 }
-                Matcher command = COMMAND.matcher(after);
-                if (!command.lookingAt()) {
+                if (count == line.commands.length) {
                     if (count == 0) {
-                        terminal = line;
+                        terminal = text;
                     }
                     break;
                 }
-                String before = command.group(1);
-                after = command.group(4);
-                if (terminal != null || !isWhitespace(before)) {
+                Command command = line.commands[count];
+                after = command.end;
+                if (terminal != -1 || !command.whitespace) {
                     terminal = after;
                     if (!stack.getLast().skip) {
-                        print(output, before);
+                        print(output, source, command.start, command.at);
                     }
                 }
-                String name = command.group(2).trim();
-                String payload = command.group(3);
+                String name = command.name;
+                String payload = command.payload;
                 Ilk.Box ilk = getContext(stack);
                 Type ilkType = ilk == null ? null : ilk.key.get(0).type;
                 count++;
                 Stencil subStencil = getStencil(stack, name);
-                if (name.equals("Bind")) {
-                    String[] binding = payload.split("\\s*=>\\s*");
+                if (command.directive == Directive.BIND) {
+                    String[] binding = command.arguments;
                     String[] from = binding[binding.length == 1 ? 0 : 1].split("/");
                     final Ilk.Box fromIlk;
                     final Class<? extends Annotation> fromQualifier;
@@ -609,6 +1687,7 @@ public class StencilFactory {
                         fromQualifier = null;
                     }
                     stack.getLast().ilk = fromIlk;
+                    stencil.page.addClass(getRawClass(fromIlk.key.type));
                     if (output != null) {
                         InjectorBuilder module;
                         if (binding.length == 1) {
@@ -657,11 +1736,12 @@ public class StencilFactory {
                         childInjector.module(module);
                         childInjector.scope(BlockScoped.class);
                         stack.getLast().injector = childInjector.newInjector();
+                        stack.getLast().scope = stack.getLast().injector;
                         Ilk.Key key = stack.getLast().ilk.key.get(0);
                         stack.getLast().instance = getInjector(stack).instance(key, Bound.class);
                     }
-                } else if (name.equals("Escape")) {
-                    String[] escape = payload.split("\\s*=>\\s*");
+                } else if (command.directive == Directive.ESCAPE) {
+                    String[] escape = command.arguments;
                     String key = "*";
                     String escaper = null;
                     if (escape.length == 1) {
@@ -673,54 +1753,22 @@ public class StencilFactory {
                     if (escaper == null) {
                         throw new Danger(StencilFactory.class, "missingEscapeProperties", index, stencil.page.uri);
                     }
-                    URL url = null;
-                    Class<?> escaperClass = null;
-                    Ilk.Key classKey = getClasses(stack).get(escaper);
-                    if (classKey != null) {
-                        escaperClass = getRawClass(classKey.type);
-                    }
-                    if (escaperClass == null) {
-                        url = Thread.currentThread().getContextClassLoader().getResource(key);
-                        if (url == null) {
-                            try {
-                                Pattern identifier = Pattern.compile("[$_\\w][$_\\w\\d]+(?:\\.[$_\\w][$_\\w\\d]+)");
-                                if (identifier.matcher(escaper).matches()) {
-                                    escaperClass = Thread.currentThread().getContextClassLoader().loadClass(escaper);
-                                }
-                            } catch (ClassNotFoundException e) {
-                            }
-                            if (escaperClass == null) {
-                                URI resource = getBaseURI().resolve(escaper);
-                                if (resource != null) {
-                                    url = getURL(getInjector(stack), resource);
-                                }
-                            }
-                        }
-                    }
-                    if (url != null) {
-                        Map<Integer, String> entities = new HashMap<Integer, String>();
-                        BufferedReader entityLines = new BufferedReader(new InputStreamReader(url.openStream()));
-                        String entityLine;
-                        while ((entityLine = entityLines.readLine()) != null) {
-                            String[] mapping = entityLine.split("\\s+");
-                            entities.put(Integer.parseInt(mapping[0]), mapping[1]);
-                        }
-                        stack.getLast().escapers.put(key, new CharCodeEscaper(entities));
-                    } else {
-                        try {
-                            stack.getLast().escapers.put(key, (Escaper) escaperClass.newInstance());
-                        } catch (Exception e) {
-                            throw new Danger(e, StencilFactory.class, "cannotCreateEscaper", escaperClass, index, stencil.page.uri);
-                        }
+                    // When checking for dirty stencils, resolve the escaper
+                    // each time so that a table dropped from the cache is read.
+                    Escaper resolved = stencil.page.escapers.get(command.ordinal);
+                    if (resolved == null || checkDirty) {
+                        resolved = getEscaper(getInjector(stack), getClasses(stack), key, escaper, index, stencil.page);
+                        stencil.page.escapers.set(command.ordinal, resolved);
                     }
-                } else if (name.equals("Get")) {
-                    if (terminal == null) {
+                    stack.getLast().putEscaper(key, resolved);
+                } else if (command.directive == Directive.GET) {
+                    if (terminal == -1) {
                         if (!stack.getLast().skip) {
-                            print(output, before);
+                            print(output, source, command.start, command.at);
                         }
                         terminal = after;
                     }
-                    String[] pathway = payload.split("\\s*=>\\s*");
+                    String[] pathway = command.arguments;
                     String path = null;
                     String escaperName = "*";
                     if (pathway.length == 1) {
@@ -732,41 +1780,32 @@ public class StencilFactory {
                     if (path == null) {
                         throw new Danger(StencilFactory.class, "missingGetPath", index, stencil.page.uri);
                     }
-                    String value = getString(ilkType, path, getSelected(stack), index, stencil.page.uri);
+                    String value = getString(stencil.page, command, path, ilkType, getSelected(stack), index);
                     if (!stack.getLast().skip) {
                         Escaper escaper = getEscaper(stack, escaperName);
                         if (escaper == null) {
                             throw new Danger(StencilFactory.class, "unknownEscaper", index, stencil.page.uri);
                         }
-                        print(output, escaper.escape(value));
+                        if (output != null) {
+                            escaper.escape(value, output);
+                        }
                     }
-                } else if (name.equals("If") || name.equals("Unless")) {
+                } else if (command.directive == Directive.IF || command.directive == Directive.UNLESS) {
                     if (!isBlank(payload)) {
-                        Ilk.Box value = get(ilkType, payload, getSelected(stack), index, stencil.page.uri);
-                        boolean condition = false;
-                        if (value != null) {
-                            Class<?> rawClass = getRawClass(value.key.type);
-                            if (Primitives.box(rawClass).equals(Boolean.class)) {
-                                condition = (Boolean) value.object;
-                            } else if (Collection.class.isAssignableFrom(rawClass)) {
-                                condition = ! ((Collection<?>) value.object).isEmpty();
-                            } else if (Iterator.class.isAssignableFrom(rawClass)) {
-                                condition = ((Iterator<?>) value.object).hasNext();
-                            } else {
-                                condition = true;
-                            }
-                        }
-                        if (name.equals("Unless")) {
+                        Ilk.Box selected = getSelected(stack);
+                        Accessor accessor = getAccessor(stencil.page, command, payload, ilkType, selected, index);
+                        boolean condition = accessor.isTrue(accessor.get(selected, index, stencil.page.uri));
+                        if (command.directive == Directive.UNLESS) {
                             condition = !condition;
                         }
                         int lastIndent = stack.getLast().indent;
-                        stack.addLast(new Level<T>());
+                        stack.addLast();
                         if (output != null) {
                             stack.getLast().skip = !condition;
                             stack.getLast().met = !condition;
                         }
                         stack.getLast().command = name;
-                        if (terminal == null && indent > lastIndent) {
+                        if (terminal == -1 && indent > lastIndent) {
                             stack.getLast().indent = indent;
                         }
                     } else {
@@ -775,22 +1814,11 @@ public class StencilFactory {
                         }
                         stack.removeLast();
                     }
-                } else if (name.equals("ElseIf")) {     
+                } else if (command.directive == Directive.ELSE_IF) {     
                     if (!isBlank(payload)) {
-                        Ilk.Box value = get(ilkType, payload, getSelected(stack), index, stencil.page.uri);
-                        boolean condition = false;
-                        if (value != null) {
-                            Class<?> rawClass = getRawClass(value.key.type);
-                            if (rawClass.equals(Boolean.class)) {
-                                condition = value.cast(new Ilk<Boolean>(Boolean.class));
-                            } else if (Collection.class.isAssignableFrom(rawClass)) {
-                                condition = ! ((Collection<?>) value.object).isEmpty();
-                            } else if (Iterator.class.isAssignableFrom(rawClass)) {
-                                condition = ((Iterator<?>) value.object).hasNext();
-                            } else {
-                                condition = true;
-                            }
-                        }
+                        Ilk.Box selected = getSelected(stack);
+                        Accessor accessor = getAccessor(stencil.page, command, payload, ilkType, selected, index);
+                        boolean condition = accessor.isTrue(accessor.get(selected, index, stencil.page.uri));
                         if (output != null) {
                             stack.getLast().skip = !condition;
                             stack.getLast().met = !condition;
@@ -801,12 +1829,12 @@ public class StencilFactory {
                         }
                         stack.removeLast();
                     }
-                } else if (name.equals("Else")) {
+                } else if (command.directive == Directive.ELSE) {
                     if (!"If".equals(stack.getLast().command)) {
                         throw new IllegalStateException();
                     }
                     stack.getLast().skip = output != null && !stack.getLast().met;
-                } else if (name.equals("Each")) {
+                } else if (command.directive == Directive.EACH) {
                     if (payload == null) {
                         if (!"Each".equals(stack.getLast().command)) {
                             throw new Danger(StencilFactory.class, "mismatchedEndEach", index, stencil.page.uri);
@@ -816,71 +1844,89 @@ public class StencilFactory {
                         } else {
                             stack.getLast().instance = stack.getLast().actualizer.actual().box(stack.getLast().each.next());
                             index = stack.getLast().index;
-                            after = stack.getLast().after;
+                            line = stack.getLast().line;
+                            count = stack.getLast().count;
+                            after = line.remainder(count);
                         }
                     } else {
-                        Ilk.Box value;
-                        if (payload.equals("")) {
-                            value = getSelected(stack);
-                        } else {
-                            value = get(ilkType, payload, getSelected(stack), index, stencil.page.uri);
-                        }
-                        if (!Collection.class.isAssignableFrom(getRawClass(value.key.type))) {
+                        Ilk.Box selected = getSelected(stack);
+                        Accessor accessor = getAccessor(stencil.page, command, payload, ilkType, selected, index);
+                        if (accessor.getActualizer() == null) {
                             throw new Danger(StencilFactory.class, "missingEachPath", index, stencil.page.uri);
                         }
                         int lastIndent = stack.getLast().indent;
-                        stack.addLast(new Level<T>());
-                        stack.getLast().actualizer = new Actualizer<T>(value.key.get(0).type);
+                        stack.addLast();
+                        stack.getLast().actualizer = accessor.<T>getActualizer();
                         stack.getLast().command = name;
-                        stack.getLast().ilk = new Ilk.Box(stack.getLast().actualizer.actual().key.type);
+                        stack.getLast().ilk = accessor.items;
                         if (output != null) {
-                            stack.getLast().each = stack.getLast().actualizer.collection(value).iterator();
+                            Ilk.Box value = accessor.get(selected, index, stencil.page.uri);
+                            if (value == null) {
+                                stack.getLast().each = Collections.<T>emptyList().iterator();
+                            } else {
+                                if (Actualizer.isStream(value.object)) {
+                                    stack.getLast().stream = value.object;
+                                }
+                                stack.getLast().each = stack.getLast().actualizer.iterator(value, index, stencil.page.uri);
+                            }
                             if (stack.getLast().each.hasNext()) {
                                 stack.getLast().instance = stack.getLast().actualizer.actual().box(stack.getLast().each.next());
                                 stack.getLast().index = index;
-                                stack.getLast().after = after;
+                                stack.getLast().line = line;
+                                stack.getLast().count = count;
                             } else {
                                 stack.getLast().skip = true;
                             }
-                            if (terminal == null && indent > lastIndent) {
-                                stack.getLast().indent = indent;
-                            } else {
-                                terminal = after;
-                            }
                         }
-                    }
-                } else if (name.equals("Separator")) {
-                    if (payload == null) {
-                        if (!stack.getLast().each.hasNext()) {
-                            stack.getLast().skip = true;
+                        if (terminal == -1 && indent > lastIndent) {
+                            stack.getLast().indent = indent;
+                        } else {
+                            terminal = after;
                         }
-                    } else {
-                        if (stack.getLast().each.hasNext()) {
-                            print(output, payload);
+                    }
+                } else if (command.directive == Directive.SEPARATOR) {
+                    if (output != null) {
+                        if (payload == null) {
+                            if (!stack.getLast().each.hasNext()) {
+                                stack.getLast().skip = true;
+                            }
+                        } else {
+                            if (stack.getLast().each.hasNext()) {
+                                print(output, payload);
+                            }
                         }
                     }
-                } else if (name.equals("Import")) {
-                    String[] importation = payload.split("\\s*=>\\s*");
+                } else if (command.directive == Directive.IMPORT) {
+                    String[] importation = command.arguments;
                     URI uri;
                     try {
                         uri = new URI(importation[1]);
                     } catch (URISyntaxException e) {
                         throw new Danger(e, StencilFactory.class, "malformedImportURI", index, stencil.page.uri);
                     }
-                    uri = stencil.page.uri.resolve(uri);
-                    String alias = importation[0];
-                    for (Map.Entry<String, Stencil> entry : compile(getInjector(stack), uri, null).stencils.entrySet()) {
-                        stack.getLast().stencils.put(alias + "." + entry.getKey(), entry.getValue());
+                    uri = stencil.page.uri.resolve(uri).normalize();
+                    Page imported = getPage(getInjector(stack), uri);
+                    depend(stencil.page, uri);
+                    if (!imported.verified) {
+                        verify(getInjector(stack), imported);
                     }
-                } else if (name.equals("Stencil")) {
+                    stack.getLast().putStencils(imported.getStencils(importation[0]));
+                } else if (command.directive == Directive.STENCIL) {
                     if (payload == null) {
                         stack.removeLast();
                     } else {
-                        stack.addLast(new Level<T>());
+                        stack.addLast();
                         stack.getLast().command = name;
-                        stencil.page.stencils.put(payload, current);
+                        Stencil defined = stencil.page.stencils.get(payload);
+                        if (defined == null || defined.line != line || defined.count != count - 1) {
+                            stencil.page.stencils.put(payload, new Stencil(stencil.page, line, index, count - 1, indent));
+                        }
                     }
-                } else if (name.equals("Nested")) {
+                } else if (command.directive == Directive.FLUSH) {
+                    if (output != null && !stack.getLast().skip) {
+                        output.flush();
+                    }
+                } else if (command.directive == Directive.NESTED) {
                     if (nested != null) {
                         nested = compile(stack, nested, null, payload, output)[0];
                     }
@@ -892,16 +1938,20 @@ public class StencilFactory {
                             if (payload == null) {
                                 throw new Danger(StencilFactory.class, "missingStencil", name, index, stencil.page.uri);
                             }
-                            return new Stencil[] { current, null };
+                            return new Stencil[] { new Stencil(stencil.page, line, index, count - 1, indent), null };
                         }
 //                        int lastIndent = stack.getLast().indent;
-//                        stack.addLast(new Level<T>());
+//                        stack.addLast();
 //                        stack.getLast().command = name;
 //                        if (indent > lastIndent) {
 //                            stack.getLast().indent = indent;
 //                        }
-                        Stencil result = compile(stack, subStencil, new Stencil(stencil.page, after, index, count, indent), null, output)[1];
-                        after = result.after;
+                        Stencil result = compile(stack, subStencil, new Stencil(stencil.page, line, index, count, indent), null, output)[1];
+                        if (stencil == stack.root && !stack.flushed && output != null && isFlushAfterFirstStencil()) {
+                            stack.flushed = true;
+                            output.flush();
+                        }
+                        line = result.line;
                         count = result.count;
                         index = result.index;
                         continue LINES;
@@ -914,79 +1964,37 @@ public class StencilFactory {
                         blockCount++;
                         if (payload != null) {
                             print(output, payload);
-                            return new Stencil[] { new Stencil(stencil.page, after, index, count, indent), null };
+                            return new Stencil[] { new Stencil(stencil.page, line, index, count, indent), null };
                         }
                         int lastIndent = stack.getLast().indent;
-                        stack.addLast(new Level<T>());
+                        stack.addLast();
                         stack.getLast().command = name;
-                        if (terminal == null && indent > lastIndent) {
+                        if (terminal == -1 && indent > lastIndent) {
                             stack.getLast().indent = indent;
                         } else {
                             terminal = after;
                         }
                     } else if (!blockName.equals(name)){
                         stack.removeLast();
-                        return new Stencil[] { current, null };
+                        return new Stencil[] { new Stencil(stencil.page, line, index, count - 1, indent), null };
                     }
                 }
-                if (after.trim().length() == 0) {
+                if (line.commands[count - 1].blank) {
                     break;
                 }
             }
-            if (terminal != null && !stack.getLast().skip) {
-                println(output, terminal);
-            }
-            after = null;
-        }
-        return new Stencil[] { new Stencil(stencil.page, after, index, count, indent), nested };
-    }
-
-    /**
-     * Determine if the given line is a comment line.
-     * 
-     * @param line
-     *            The line.
-     * @return True if the line is a comment.
-     */
-    private boolean isComment(String line) {
-        int index = 0, stop = line.length();
-        while (index < stop) {
-            if (!Character.isWhitespace(line.charAt(index))) {
-                break;
-            }
-            index++;
-        }
-        if (stop != index) {
-            if (line.charAt(index) == '@') {
-                index++;
-                if (stop != index) {
-                    return Character.isWhitespace(line.charAt(index));
-                }
-            }
-        }
-        return false;
-    }
-
-    /**
-     * Determine if the given line is entirely whitespace.
-     * 
-     * @param line
-     *            The line.
-     * @return True if the line is entirely whitespace.
-     */
-    private boolean isWhitespace(String line) {
-        for (int i = 0, stop = line.length(); i < stop; i++) {
-            if (!Character.isWhitespace(line.charAt(i))) {
-                return false;
+            if (terminal != -1 && !stack.getLast().skip) {
+                print(output, source, terminal, line.end + 1);
             }
+            line = null;
         }
-        return true;
+        return new Stencil[] { new Stencil(stencil.page, line, index, count, indent), nested };
     }
 
     /**
-     * Compile the given stencil located at the given URI. If the output writer
-     * is null, the compilation is a static analysis, all branches will be
-     * checked for type safety.
+     * Compile the given stencil located at the given URI. If the output is
+     * null, the compilation is a static analysis, all branches will be checked
+     * for type safety.
      * 
      * @param <T>
      *            Type variable used for variable substitution.
@@ -997,22 +2005,43 @@ public class StencilFactory {
      * @param stencil
      *            The stencil.
      * @param output
-     *            The output writer or null if this is a static analysis.
+     *            The output or null if this is a static analysis.
      * @return A page containing the lines and stencils found in the stencil.
      */
-    private <T> Page compile(Injector injector, URI uri, Stencil stencil, Writer output) {
+    private <T> Page compile(Injector injector, URI uri, Stencil stencil, Output output) {
         // Stack of state based on document element depth.
-        LinkedList<Level<T>> stack = new LinkedList<Level<T>>();
+        // Reuse the stack of this thread unless this is a render that
+        // started while rendering, such as the verification of an import.
+        @SuppressWarnings("unchecked")
+        Levels<T> stack = (Levels<T>) levels.get();
+        if (stack == null || stack.busy) {
+            stack = new Levels<T>();
+            if (levels.get() == null) {
+                levels.set(stack);
+            }
+        }
+        stack.busy = true;
+        stack.root = stencil;
         
         // Add a bogus top element to forgo empty stack tests.
-        stack.addLast(new Level<T>());
-        stack.getLast().escapers.put("*", new Escaper());
+        stack.addLast();
         stack.getLast().injector = injector.newInjector().newInjector(); 
+        stack.getLast().scope = stack.getLast().injector;
         
         try {
             compile(stack, stencil, null, null, output);
+            if (output != null) {
+                output.finish();
+                stencil.page.outputSize.record(output.count);
+            }
         } catch (IOException e) {
             throw new Danger(e, StencilFactory.class, "ioException", uri);
+        } finally {
+            try {
+                stack.clear();
+            } finally {
+                stack.busy = false;
+            }
         }
         
         return stencil.page;
@@ -1022,92 +2051,207 @@ public class StencilFactory {
      * Get the string value of the object found at the given path, checking that
      * the path actually exists relative to the given object.
      * 
-     * @param actual
-     *            The type of the object.
+     * @param page
+     *            The page of the command.
+     * @param command
+     *            The command.
      * @param expression
      *            The path to evaluate.
+     * @param actual
+     *            The type of the object.
      * @param object
      *            The object.
      * @param line
      *            The line number where the path was read.
-     * @param uri
-     *            The URI from which the path was read.
      * @return The string value of the given object or null.
      */
-    private static String getString(Type actual, String expression, Ilk.Box object, int line, URI uri) {
-        Ilk.Box box = get(actual, expression, object, line, uri);
+    private String getString(Page page, Command command, String expression, Type actual, Ilk.Box object, int line) {
+        Ilk.Box box = getAccessor(page, command, expression, actual, object, line).get(object, line, page.uri);
         return box == null ? null : diffuser.diffuse(box.object).toString();
     }
 
     /**
-     * Get a boxed instance of the object found at the given path, checking that
-     * the path actually exists relative to the given object.
+     * Get the accessor for the path of the given command resolved against the
+     * type of the given object, or the given actual type if the object is
+     * null. The accessor last resolved for the command by the page is reused
+     * if it was resolved against the same type.
      * 
+     * @param page
+     *            The page of the command.
+     * @param command
+     *            The command.
+     * @param expression
+     *            The path expression of the command.
      * @param actual
      *            The type of the object.
-     * @param expression
-     *            The path to evaluate.
      * @param object
      *            The object.
      * @param line
      *            The line number where the path was read.
+     * @return The accessor.
+     */
+    private Accessor getAccessor(Page page, Command command, String expression, Type actual, Ilk.Box object, int line) {
+        Type context = object == null ? actual : object.key.type;
+        Accessor accessor = page.accessors.get(command.ordinal);
+        if (accessor == null || !(accessor.context == context || accessor.context.equals(context))) {
+            accessor = getAccessor(context, expression, line, page.uri);
+            page.accessors.set(command.ordinal, accessor);
+            for (Class<?> type : accessor.classes) {
+                page.addClass(type);
+            }
+        }
+        return accessor;
+    }
+
+    /**
+     * Get the accessor for the given path expression resolved against the
+     * given context type, resolving and caching the accessor if it has not
+     * been resolved before.
+     * 
+     * @param context
+     *            The context type.
+     * @param expression
+     *            The path expression.
+     * @param line
+     *            The line number where the path was read.
      * @param uri
      *            The URI from which the path was read.
-     * @return A boxed instance of the object.
+     * @return The accessor.
      */
-    private static <T> Ilk.Box get(Type actual, String expression, Ilk.Box object, int line, URI uri) {
-        Path path;
-        try {
-            path = new Path(expression, false);
-        } catch (ParseException e) {
-            throw new Danger(e, StencilFactory.class, "Invalid object path [%s] at line [%d] of [%s].", expression, line, uri);
+    private Accessor getAccessor(Type context, String expression, int line, URI uri) {
+        ConcurrentMap<String, Accessor> expressions = accessors.get(context);
+        if (expressions == null) {
+            expressions = new ConcurrentHashMap<String, Accessor>();
+            ConcurrentMap<String, Accessor> existing = accessors.putIfAbsent(context, expressions);
+            if (existing != null) {
+                expressions = existing;
+            }
         }
-        Type type = object.key.type;
-        for (int i = 0; i < path.size(); i++) {
-            Part part = path.get(i);
-            if (PathEvaluator.class.isAssignableFrom(getRawClass(type))) {
-                if (object != null) {
-                    try {
-                        Method method = getRawClass(type).getMethod("get", Ilk.Box.class, Path.class);
-                        object = IlkReflect.invoke(IlkReflect.REFLECTOR, method, object, new Ilk<Ilk.Box>(Ilk.Box.class).box(object), new Ilk<Path>(Path.class).box(path));
-                    } catch (Throwable e) {
-                        throw new Danger(e, StencilFactory.class, "Cannot invoke get on PathEvaluator at line [%d] of [%s].", line, uri);
-                    }
-                }
-                type = ((ParameterizedType) type).getActualTypeArguments()[0];
-                break;
-            } else if (Map.class.isAssignableFrom(getRawClass(type))) {
-                if (object != null) {
-                    try {
-                        Method method = getRawClass(type).getMethod("get", Object.class);
-                        object = IlkReflect.invoke(IlkReflect.REFLECTOR, method, object, new Ilk<String>(String.class).box(part.getName()));
-                    } catch (Exception e) {
-                        throw new Danger(e, StencilFactory.class, "cannotInvokeGetOnMap", line, uri);
-                    }
+        Accessor accessor = expressions.get(expression);
+        if (accessor == null) {
+            accessor = new Accessor(context, expression, line, uri);
+            expressions.put(expression, accessor);
+        }
+        return accessor;
+    }
+
+    /**
+     * The background task that evicts dirty pages, which holds the factory by
+     * a weak reference so that a factory that is discarded without being
+     * closed can be collected, and shuts down its executor when it finds
+     * that the factory has been collected.
+     */
+    private final static class DirtyChecker implements Runnable {
+        /** The stencil factory. */
+        private final WeakReference<StencilFactory> factory;
+
+        /** The executor that runs this task. */
+        private final ScheduledExecutorService executor;
+
+        /**
+         * Create a dirty checker for the given factory run by the given
+         * executor.
+         * 
+         * @param factory
+         *            The stencil factory.
+         * @param executor
+         *            The executor that runs this task.
+         */
+        private DirtyChecker(StencilFactory factory, ScheduledExecutorService executor) {
+            this.factory = new WeakReference<StencilFactory>(factory);
+            this.executor = executor;
+        }
+
+        /**
+         * Start checking the cached pages of the given factory for changes at
+         * the given interval on a daemon thread.
+         * 
+         * @param factory
+         *            The stencil factory.
+         * @param interval
+         *            The interval in milliseconds.
+         * @return The executor that runs the dirty checker.
+         */
+        public static ScheduledExecutorService start(StencilFactory factory, long interval) {
+            ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "Stencil Dirty Checker");
+                    thread.setDaemon(true);
+                    return thread;
                 }
-                type = ((ParameterizedType) type).getActualTypeArguments()[1];
+            });
+            executor.scheduleWithFixedDelay(new DirtyChecker(factory, executor), interval, interval, TimeUnit.MILLISECONDS);
+            return executor;
+        }
+
+        /**
+         * Evict the dirty pages of the factory, or shut down the executor if
+         * the factory has been collected.
+         */
+        public void run() {
+            StencilFactory stencils = factory.get();
+            if (stencils == null) {
+                executor.shutdown();
             } else {
-                Map<String, Getter> getters = Getters.getGetters(getRawClass(type));
-                Getter getter = getters.get(part.getName());
-                if (getter == null) {
-                    throw new Danger(StencilFactory.class, "invalidObjectPath", expression, line, uri);
-                }
-                if (object != null) {
-                    try {
-                        if (getter.getMember() instanceof Method) {
-                            Method method = (Method) getter.getMember();
-                                object = IlkReflect.invoke(IlkReflect.REFLECTOR, method, object);
-                        } else {
-                            Field field = (Field) getter.getMember();
-                            object = IlkReflect.get(IlkReflect.REFLECTOR, field, object);
-                        }
-                    } catch (Exception e) {
-                        throw new Danger(e, StencilFactory.class, "cannotInvokeGet", part.getName(), object.getClass(), line, uri);
-                    }
-                }
-                type = getActualType(getter.getGenericType(), type, new LinkedList<Map<TypeVariable<?>, Type>>());
+                stencils.evictDirty();
             }
         }
-        return object;
+    }
+
+    /**
+     * A task that loads or verifies a page, recording the thread that runs it
+     * so that a page that imports itself, directly or through pages loaded by
+     * other threads, is reported instead of waiting forever on its own load.
+     */
+    private final static class Loader extends FutureTask<Page> {
+        /** The thread that created and runs the loader. */
+        public final Thread thread = Thread.currentThread();
+
+        /**
+         * Create a loader that runs the given callable.
+         * 
+         * @param callable
+         *            The callable that loads the page.
+         */
+        public Loader(Callable<Page> callable) {
+            super(callable);
+        }
+    }
+
+    /**
+     * An escaper read from an escape table with the URL and last modified
+     * time of the table.
+     */
+    private final static class EscapeTable {
+        /** The URL of the table. */
+        public final URL url;
+
+        /** The last modified time of the table when it was read. */
+        public final long lastModified;
+
+        /** The hash of the table. */
+        public final byte[] hash;
+
+        /** The escaper. */
+        public final Escaper escaper;
+
+        /**
+         * Create an escape table.
+         * 
+         * @param url
+         *            The URL of the table.
+         * @param lastModified
+         *            The last modified time of the table when it was read.
+         * @param hash
+         *            The hash of the table.
+         * @param escaper
+         *            The escaper.
+         */
+        public EscapeTable(URL url, long lastModified, byte[] hash, Escaper escaper) {
+            this.url = url;
+            this.lastModified = lastModified;
+            this.hash = hash;
+            this.escaper = escaper;
+        }
     }
 }
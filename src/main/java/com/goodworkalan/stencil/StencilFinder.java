@@ -0,0 +1,208 @@
+package com.goodworkalan.stencil;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.JarURLConnection;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.regex.Pattern;
+
+import com.goodworkalan.danger.Danger;
+import com.goodworkalan.stencil.clap.Handler;
+
+/**
+ * Finds the stencils beneath a root URI whose paths relative to the root
+ * match a glob pattern. The root is either a <code>file</code> URI of a
+ * directory or a <code>clap</code> URI of a class path prefix, in which case
+ * the directories and JAR files of the class path beneath the prefix are
+ * searched.
+ * <p>
+ * In the glob pattern, <code>*</code> matches any characters except a slash,
+ * <code>**</code> matches any characters including slashes, and
+ * <code>?</code> matches a single character except a slash.
+ *
+ * @author Alan Gutierrez
+ */
+class StencilFinder {
+    /** The pattern the relative paths of the stencils must match. */
+    private final Pattern pattern;
+
+    /**
+     * Create a stencil finder that finds stencils whose relative paths match
+     * the given glob pattern.
+     *
+     * @param glob
+     *            The glob pattern.
+     */
+    public StencilFinder(String glob) {
+        this.pattern = Pattern.compile(toRegex(glob));
+    }
+
+    /**
+     * Convert a glob pattern into a regular expression.
+     *
+     * @param glob
+     *            The glob pattern.
+     * @return The regular expression.
+     */
+    static String toRegex(String glob) {
+        StringBuilder regex = new StringBuilder();
+        for (int i = 0, stop = glob.length(); i < stop; i++) {
+            char ch = glob.charAt(i);
+            if (ch == '*') {
+                if (i + 1 < stop && glob.charAt(i + 1) == '*') {
+                    i++;
+                    if (i + 1 < stop && glob.charAt(i + 1) == '/') {
+                        i++;
+                        regex.append("(?:.*/)?");
+                    } else {
+                        regex.append(".*");
+                    }
+                } else {
+                    regex.append("[^/]*");
+                }
+            } else if (ch == '?') {
+                regex.append("[^/]");
+            } else {
+                regex.append(Pattern.quote(Character.toString(ch)));
+            }
+        }
+        return regex.toString();
+    }
+
+    /**
+     * Find the stencils beneath the given absolute root URI whose paths
+     * relative to the root match the glob pattern of this finder.
+     *
+     * @param root
+     *            The absolute root URI.
+     * @return The sorted list of the URIs of the stencils found.
+     * @throws IOException
+     *             For any I/O error.
+     */
+    public List<URI> find(URI root) throws IOException {
+        SortedSet<String> paths = new TreeSet<String>();
+        if ("file".equals(root.getScheme())) {
+            list(new File(root), "", paths);
+        } else if ("clap".equals(root.getScheme())) {
+            String prefix = root.getPath().substring(1);
+            if (prefix.length() != 0 && !prefix.endsWith("/")) {
+                prefix = prefix + "/";
+            }
+            Enumeration<URL> resources = getClassLoader(root.getHost()).getResources(prefix);
+            while (resources.hasMoreElements()) {
+                list(resources.nextElement(), paths);
+            }
+        } else {
+            throw new Danger(StencilFactory.class, "cannotFindStencils", root);
+        }
+        URI base = root.toString().endsWith("/") ? root : URI.create(root.toString() + "/");
+        List<URI> uris = new ArrayList<URI>();
+        for (String path : paths) {
+            if (pattern.matcher(path).matches()) {
+                try {
+                    uris.add(base.resolve(new URI(null, null, path, null)));
+                } catch (URISyntaxException e) {
+                    throw new IOException(path);
+                }
+            }
+        }
+        return Collections.unmodifiableList(uris);
+    }
+
+    /**
+     * Get the class loader named by the host of a <code>clap</code> URI.
+     *
+     * @param host
+     *            The host of the URI.
+     * @return The class loader.
+     */
+    private static ClassLoader getClassLoader(String host) {
+        if ("thread".equals(host)) {
+            return Thread.currentThread().getContextClassLoader();
+        }
+        if ("system".equals(host)) {
+            return ClassLoader.getSystemClassLoader();
+        }
+        return Handler.class.getClassLoader();
+    }
+
+    /**
+     * Add the relative paths of the files beneath the class path directory or
+     * JAR directory entry at the given URL to the given set of paths.
+     *
+     * @param url
+     *            The URL of the directory.
+     * @param paths
+     *            The set of relative paths.
+     * @throws IOException
+     *             For any I/O error.
+     */
+    private static void list(URL url, SortedSet<String> paths) throws IOException {
+        if ("file".equals(url.getProtocol())) {
+            try {
+                list(new File(url.toURI()), "", paths);
+            } catch (URISyntaxException e) {
+                throw new IOException(url.toString());
+            }
+        } else {
+            URLConnection connection = url.openConnection();
+            if (connection instanceof JarURLConnection) {
+                JarURLConnection jar = (JarURLConnection) connection;
+                jar.setUseCaches(false);
+                String prefix = jar.getEntryName() == null ? "" : jar.getEntryName();
+                if (prefix.length() != 0 && !prefix.endsWith("/")) {
+                    prefix = prefix + "/";
+                }
+                JarFile file = jar.getJarFile();
+                try {
+                    Enumeration<JarEntry> entries = file.entries();
+                    while (entries.hasMoreElements()) {
+                        JarEntry entry = entries.nextElement();
+                        if (!entry.isDirectory() && entry.getName().startsWith(prefix)) {
+                            paths.add(entry.getName().substring(prefix.length()));
+                        }
+                    }
+                } finally {
+                    file.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Add the relative paths of the files beneath the given directory to the
+     * given set of paths, prefixing each with the given relative path of the
+     * directory.
+     *
+     * @param directory
+     *            The directory.
+     * @param relative
+     *            The relative path of the directory, empty or ending with a
+     *            slash.
+     * @param paths
+     *            The set of relative paths.
+     */
+    private static void list(File directory, String relative, SortedSet<String> paths) {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.isDirectory()) {
+                    list(file, relative + file.getName() + "/", paths);
+                } else {
+                    paths.add(relative + file.getName());
+                }
+            }
+        }
+    }
+}
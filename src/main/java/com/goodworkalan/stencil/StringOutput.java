@@ -0,0 +1,80 @@
+package com.goodworkalan.stencil;
+
+import java.io.Writer;
+
+/**
+ * An output that appends characters to a string builder, without the
+ * synchronization of a string writer.
+ *
+ * @author Alan Gutierrez
+ */
+class StringOutput extends Output {
+    /** The string builder. */
+    private final StringBuilder builder;
+
+    /**
+     * Create an output that appends to the given string builder.
+     *
+     * @param builder
+     *            The string builder.
+     */
+    public StringOutput(StringBuilder builder) {
+        this.builder = builder;
+    }
+
+    /**
+     * Append the given characters to the string builder.
+     *
+     * @param characters
+     *            The characters.
+     * @param offset
+     *            The offset of the first character to write.
+     * @param length
+     *            The number of characters to write.
+     */
+    @Override
+    public void write(char[] characters, int offset, int length) {
+        builder.append(characters, offset, length);
+        count += length;
+    }
+
+    /**
+     * Append a portion of the given string to the string builder.
+     *
+     * @param string
+     *            The string.
+     * @param offset
+     *            The offset of the first character to write.
+     * @param length
+     *            The number of characters to write.
+     */
+    @Override
+    public void write(String string, int offset, int length) {
+        builder.append(string, offset, offset + length);
+        count += length;
+    }
+
+    /**
+     * Append the given character sequence to the string builder.
+     *
+     * @param sequence
+     *            The character sequence.
+     * @return This output.
+     */
+    @Override
+    public Writer append(CharSequence sequence) {
+        builder.append(sequence);
+        count += sequence == null ? 4 : sequence.length();
+        return this;
+    }
+
+    /** The string builder is in memory so there is nothing to flush. */
+    @Override
+    public void flush() {
+    }
+
+    /** The string builder is in memory so there is nothing to finish. */
+    @Override
+    public void finish() {
+    }
+}
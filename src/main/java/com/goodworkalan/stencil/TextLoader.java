@@ -0,0 +1,88 @@
+package com.goodworkalan.stencil;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Reads the text of a stencil with an explicit character set, decoding the
+ * whole of the resource in a single pass. Files are memory mapped rather than
+ * read through a stream.
+ *
+ * @author Alan Gutierrez
+ */
+class TextLoader {
+    /**
+     * Read the text of the given file by memory mapping it and decoding it
+     * with the given character set.
+     *
+     * @param file
+     *            The file.
+     * @param charset
+     *            The character set.
+     * @return The text of the file.
+     * @throws IOException
+     *             For any I/O error.
+     */
+    public static CharBuffer read(File file, Charset charset) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            return decode(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), charset);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Read the text of the given input stream decoding it with the given
+     * character set. The input stream is closed.
+     *
+     * @param in
+     *            The input stream.
+     * @param charset
+     *            The character set.
+     * @return The text of the input stream.
+     * @throws IOException
+     *             For any I/O error.
+     */
+    public static CharBuffer read(InputStream in, Charset charset) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                bytes.write(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+        return decode(ByteBuffer.wrap(bytes.toByteArray()), charset);
+    }
+
+    /**
+     * Decode the given bytes with the given character set, replacing
+     * malformed input and unmappable characters.
+     *
+     * @param bytes
+     *            The bytes.
+     * @param charset
+     *            The character set.
+     * @return The decoded characters.
+     * @throws IOException
+     *             Never, since errors are replaced.
+     */
+    private static CharBuffer decode(ByteBuffer bytes, Charset charset) throws IOException {
+        return charset.newDecoder()
+                      .onMalformedInput(CodingErrorAction.REPLACE)
+                      .onUnmappableCharacter(CodingErrorAction.REPLACE)
+                      .decode(bytes);
+    }
+}
@@ -0,0 +1,95 @@
+package com.goodworkalan.stencil;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * An output that writes characters to a writer.
+ *
+ * @author Alan Gutierrez
+ */
+class WriterOutput extends Output {
+    /** The writer. */
+    private final Writer writer;
+
+    /**
+     * Create an output that writes to the given writer.
+     *
+     * @param writer
+     *            The writer.
+     */
+    public WriterOutput(Writer writer) {
+        this.writer = writer;
+    }
+
+    /**
+     * Write the given characters to the writer.
+     *
+     * @param characters
+     *            The characters.
+     * @param offset
+     *            The offset of the first character to write.
+     * @param length
+     *            The number of characters to write.
+     * @throws IOException
+     *             For any I/O error.
+     */
+    @Override
+    public void write(char[] characters, int offset, int length) throws IOException {
+        writer.write(characters, offset, length);
+        count += length;
+    }
+
+    /**
+     * Write a portion of the given string to the writer.
+     *
+     * @param string
+     *            The string.
+     * @param offset
+     *            The offset of the first character to write.
+     * @param length
+     *            The number of characters to write.
+     * @throws IOException
+     *             For any I/O error.
+     */
+    @Override
+    public void write(String string, int offset, int length) throws IOException {
+        writer.write(string, offset, length);
+        count += length;
+    }
+
+    /**
+     * Append the given character sequence to the writer.
+     *
+     * @param sequence
+     *            The character sequence.
+     * @return This output.
+     * @throws IOException
+     *             For any I/O error.
+     */
+    @Override
+    public Writer append(CharSequence sequence) throws IOException {
+        writer.append(sequence);
+        count += sequence == null ? 4 : sequence.length();
+        return this;
+    }
+
+    /**
+     * Flush the writer.
+     *
+     * @throws IOException
+     *             For any I/O error.
+     */
+    @Override
+    public void flush() throws IOException {
+        writer.flush();
+    }
+
+    /**
+     * The writer writes directly to the underlying writer so there is nothing
+     * to finish.
+     */
+    @Override
+    public void finish() {
+    }
+}
@@ -0,0 +1,80 @@
+package com.goodworkalan.stencil;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertSame;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.testng.annotations.Test;
+
+/**
+ * Unit tests for the {@link CharCodeEscaper} class.
+ *
+ * @author Alan Gutierrez
+ */
+public class CharCodeEscaperTest {
+    /** Create an escaper for the less than, greater than and ampersand. */
+    private CharCodeEscaper entities() {
+        Map<Integer, String> escapes = new HashMap<Integer, String>();
+        escapes.put((int) '<', "&lt;");
+        escapes.put((int) '>', "&gt;");
+        escapes.put((int) '&', "&amp;");
+        return new CharCodeEscaper(escapes);
+    }
+
+    /**
+     * Escape the given string to an output that already has text, and
+     * assert that the escaped string is appended.
+     *
+     * @param escaper
+     *            The escaper.
+     * @param unescaped
+     *            The string to escape.
+     * @param expected
+     *            The expected escaped string.
+     */
+    private void escape(Escaper escaper, CharSequence unescaped, String expected) throws IOException {
+        StringBuilder output = new StringBuilder("|");
+        escaper.escape(unescaped, output);
+        assertEquals(output.toString(), "|" + expected);
+        assertEquals(escaper.escape(unescaped).toString(), expected);
+    }
+
+    /** Test escapes at the start and end of the string. */
+    @Test
+    public void leadingTrailing() throws IOException {
+        CharCodeEscaper escaper = entities();
+        escape(escaper, "<a", "&lt;a");
+        escape(escaper, "a>", "a&gt;");
+        escape(escaper, "<a>", "&lt;a&gt;");
+        escape(escaper, "<", "&lt;");
+        escape(escaper, "<>&", "&lt;&gt;&amp;");
+        escape(escaper, new StringBuilder("&b & c&"), "&amp;b &amp; c&amp;");
+    }
+
+    /** Test strings with nothing to escape. */
+    @Test
+    public void unescaped() throws IOException {
+        CharCodeEscaper escaper = entities();
+        escape(escaper, "", "");
+        escape(escaper, "abc", "abc");
+        String unescaped = "a b c";
+        assertSame(escaper.escape(unescaped), unescaped);
+    }
+
+    /** Test characters with codes above the length of the table. */
+    @Test
+    public void aboveTable() throws IOException {
+        CharCodeEscaper escaper = entities();
+        escape(escaper, "\u00e9<\u2603>\uffff", "\u00e9&lt;\u2603&gt;\uffff");
+        escape(escaper, "\ud834\udd1e", "\ud834\udd1e");
+        Map<Integer, String> escapes = new HashMap<Integer, String>();
+        escapes.put(-1, "negative");
+        escapes.put(0x1d11e, "clef");
+        escapes.put(0xe9, "&eacute;");
+        escaper = new CharCodeEscaper(escapes);
+        escape(escaper, "\u00e9\ud834\udd1e\u00ea\uffff", "&eacute;\ud834\udd1e\u00ea\uffff");
+    }
+}
@@ -0,0 +1,138 @@
+package com.goodworkalan.stencil;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.testng.annotations.Test;
+
+import com.goodworkalan.danger.Danger;
+import com.goodworkalan.ilk.inject.Injector;
+import com.goodworkalan.ilk.inject.InjectorBuilder;
+
+/**
+ * Unit tests for the {@link Levels} and {@link Level} classes.
+ *
+ * @author Alan Gutierrez
+ */
+public class LevelsTest {
+    /** Test a level that inherits values in scope and then shadows them. */
+    @Test
+    public void inheritShadow() {
+        Levels<Object> levels = new Levels<Object>();
+        Injector injector = new InjectorBuilder().newInjector();
+        Escaper escaper = new Escaper();
+        Stencil stencil = new Stencil(null, 0);
+        levels.addLast();
+        levels.getLast().scope = injector;
+        levels.getLast().putEscaper("html", escaper);
+        levels.getLast().putStencil("Util.Greet", stencil);
+
+        levels.addLast();
+        Level<Object> level = levels.getLast();
+        assertSame(level.scope, injector);
+        assertSame(level.getEscaper("html"), escaper);
+        assertSame(level.getStencil("Util.Greet"), stencil);
+        assertNotNull(level.getEscaper("*"));
+
+        Injector shadow = injector.newInjector().newInjector();
+        Escaper shadowEscaper = new Escaper();
+        Stencil shadowStencil = new Stencil(null, 0);
+        level.injector = level.scope = shadow;
+        level.putEscaper("html", shadowEscaper);
+        level.putStencils(Collections.singletonMap("Util.Greet", shadowStencil));
+        assertSame(level.scope, shadow);
+        assertSame(level.getEscaper("html"), shadowEscaper);
+        assertSame(level.getStencil("Util.Greet"), shadowStencil);
+
+        levels.addLast();
+        assertSame(levels.getLast().getEscaper("html"), shadowEscaper);
+        levels.removeLast();
+
+        levels.removeLast();
+        level = levels.getLast();
+        assertSame(level.scope, injector);
+        assertSame(level.getEscaper("html"), escaper);
+        assertSame(level.getStencil("Util.Greet"), stencil);
+
+        levels.clear();
+        levels.addLast();
+        assertNull(levels.getLast().scope);
+        assertNull(levels.getLast().getEscaper("html"));
+        assertNull(levels.getLast().getStencil("Util.Greet"));
+        assertEquals(levels.getLast().getEscaper("*").getClass(), Escaper.class);
+    }
+
+    /**
+     * Create a stream that records its name in the given list when it is
+     * closed, and raises an exception from close if it is named fail.
+     *
+     * @param name
+     *            The name.
+     * @param closed
+     *            The list of closed streams.
+     * @return A stream.
+     */
+    private Object stream(final String name, final List<String> closed) {
+        return Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { Actualizer.BASE_STREAM }, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                if (method.getName().equals("close")) {
+                    closed.add(name);
+                    if (name.equals("fail")) {
+                        throw new IllegalStateException();
+                    }
+                }
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Test that the stream of a level is closed when the level is removed and
+     * when the stack is cleared by a render that ended early.
+     */
+    @Test
+    public void closeStreams() {
+        if (Actualizer.BASE_STREAM == null) {
+            return;
+        }
+        List<String> closed = new ArrayList<String>();
+        Levels<Object> levels = new Levels<Object>();
+        levels.addLast();
+        levels.addLast();
+        levels.getLast().stream = stream("a", closed);
+        assertTrue(Actualizer.isStream(levels.getLast().stream));
+        levels.removeLast();
+        assertEquals(closed, Collections.singletonList("a"));
+        levels.addLast();
+        assertNull(levels.getLast().stream);
+        levels.removeLast();
+        assertEquals(closed.size(), 1);
+
+        closed.clear();
+        for (String name : new String[] { "b", "fail", "c" }) {
+            levels.addLast();
+            levels.getLast().stream = stream(name, closed);
+        }
+        try {
+            levels.clear();
+            assertTrue(false);
+        } catch (Danger e) {
+        }
+        assertEquals(closed, Arrays.asList("c", "fail", "b"));
+        levels.addLast();
+        assertNull(levels.getLast().stream);
+        levels.clear();
+        assertEquals(closed.size(), 3);
+    }
+}
@@ -0,0 +1,130 @@
+package com.goodworkalan.stencil;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.testng.annotations.Test;
+
+/**
+ * Unit tests for the {@link Lexer} class, comparing each line against the
+ * regular expression that the lexer replaced.
+ *
+ * @author Alan Gutierrez
+ */
+public class LexerTest {
+    /** The regular expression that once split a line into commands. */
+    private final static Pattern COMMAND = Pattern.compile("^((?:[^@]|@@)*)@(@|[A-Z][a-zA-Z]+(?:\\.[A-Za-z][A-Za-z0-9]+)?)(?:!|\\(([^)]*)\\))?(.*)$");
+
+    /** The regular expression that once split a payload into arguments. */
+    private final static Pattern ARROW = Pattern.compile("\\s*=>\\s*");
+
+    /**
+     * Split the given line into commands with the lexer and with the regular
+     * expression, and assert that the commands are the same.
+     *
+     * @param line
+     *            The line without its new line.
+     * @return The commands found by the lexer.
+     */
+    private Command[] lex(String line) {
+        char[] text = (" " + line + "\n").toCharArray();
+        Command[] commands = Lexer.lex(text, 1, text.length - 1);
+        List<String> expected = new ArrayList<String>();
+        Matcher command = COMMAND.matcher(CharBuffer.wrap(text));
+        command.region(1, text.length - 1);
+        while (command.lookingAt()) {
+            String payload = command.group(3);
+            String[] arguments = payload == null ? null : ARROW.split(payload);
+            expected.add(command.start(1) + " " + command.end(1) + " " + command.group(2).trim() + " " + payload + " " + (arguments == null ? null : Arrays.asList(arguments)) + " " + command.start(4));
+            command.region(command.start(4), text.length - 1);
+        }
+        List<String> actual = new ArrayList<String>();
+        for (Command found : commands) {
+            actual.add(found.start + " " + found.at + " " + found.name + " " + found.payload + " " + (found.arguments == null ? null : Arrays.asList(found.arguments)) + " " + found.end);
+        }
+        assertEquals(actual, expected, line);
+        return commands;
+    }
+
+    /** Test payloads with quotes, escapes and parentheses. */
+    @Test
+    public void payloads() {
+        assertEquals(lex("@Get(\"firstName\")")[0].payload, "\"firstName\"");
+        assertEquals(lex("@Get('a\\'b')")[0].payload, "'a\\'b'");
+        assertEquals(lex("@Get(a \\) b)")[0].payload, "a \\");
+        assertEquals(lex("@Get(\"a)b\")")[0].payload, "\"a");
+        assertEquals(lex("@Get()")[0].payload, "");
+        assertEquals(lex("@Get(@Get(x))")[0].payload, "@Get(x");
+        lex("Hello, @Get(\"name\") and @Get('other')!");
+    }
+
+    /** Test payloads split into arguments on the arrow. */
+    @Test
+    public void arguments() {
+        assertEquals(Arrays.asList(lex("@Import(B => b.txt)")[0].arguments), Arrays.asList("B", "b.txt"));
+        assertEquals(Arrays.asList(lex("@Get(a=>b=>c)")[0].arguments), Arrays.asList("a", "b", "c"));
+        assertEquals(Arrays.asList(lex("@Get(a => b => )")[0].arguments), Arrays.asList("a", "b"));
+        assertEquals(Arrays.asList(lex("@Get( => a)")[0].arguments), Arrays.asList("", "a"));
+        assertEquals(Arrays.asList(lex("@Get(a = > b)")[0].arguments), Arrays.asList("a = > b"));
+        assertEquals(lex("@If!")[0].arguments, null);
+        lex("@Bind(com.example.Person/com.example.Named => Person)");
+    }
+
+    /** Test that comment lines have no commands. */
+    @Test
+    public void comments() {
+        char[] text = "  @ @Get(x)\n".toCharArray();
+        Line line = new Line(text, 0, text.length - 1);
+        assertTrue(line.comment);
+        assertEquals(line.commands.length, 0);
+        text = "@\tcomment\n".toCharArray();
+        assertTrue(new Line(text, 0, text.length - 1).comment);
+        text = "@Get(x) @ not a comment\n".toCharArray();
+        line = new Line(text, 0, text.length - 1);
+        assertTrue(!line.comment);
+        assertEquals(line.commands.length, 1);
+        lex("@ @Get(x)");
+    }
+
+    /** Test at signs that do not begin a command. */
+    @Test
+    public void malformed() {
+        assertEquals(lex("someone@example.com").length, 0);
+        assertEquals(lex("@get(x)").length, 0);
+        assertEquals(lex("@G(x)").length, 0);
+        assertEquals(lex("@Get.1x").length, 1);
+        assertEquals(lex("@Get.x1(a)")[0].name, "Get.x1");
+        assertEquals(lex("@Get(x")[0].payload, null);
+        assertEquals(lex("@@")[0].name, "@");
+        assertEquals(lex("a@@b @Get(x)")[0].name, "Get");
+        assertEquals(lex("a@@b @get(x)")[0].name, "@");
+        assertEquals(lex("@@@Get(x)")[0].name, "Get");
+        lex("@Get(a)@Get(b)@If!@");
+        lex("@");
+        lex("@@@");
+        lex("trailing @");
+        lex("@Get!(x)");
+    }
+
+    /** Test random lines against the regular expression. */
+    @Test
+    public void random() {
+        char[] alphabet = "@@@()!=> AGetIfx.1\"\\'".toCharArray();
+        Random random = new Random(0);
+        for (int i = 0; i < 20000; i++) {
+            char[] line = new char[random.nextInt(24)];
+            for (int j = 0; j < line.length; j++) {
+                line[j] = alphabet[random.nextInt(alphabet.length)];
+            }
+            lex(new String(line));
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package com.goodworkalan.stencil;
+
+import java.util.Iterator;
+
+/**
+ * People and numbers to iterate without a collection.
+ * 
+ * @author Alan Gutierrez
+ */
+public class Roster {
+    /** An array of people. */
+    public Person[] array;
+
+    /** An array of primitive numbers. */
+    public int[] numbers;
+
+    /** A cursor over people. */
+    public Iterator<Person> cursor;
+
+    /** An iterable of people that is not a collection. */
+    public Iterable<Person> iterable;
+}
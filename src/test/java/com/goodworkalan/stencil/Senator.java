@@ -0,0 +1,37 @@
+package com.goodworkalan.stencil;
+
+/**
+ * A senator with a last name like a person but not related to a person, used
+ * to evaluate the same path against two context types.
+ *
+ * @author Alan Gutierrez
+ */
+public class Senator {
+    /** The last name. */
+    private final String lastName;
+
+    /** The state. */
+    private final String state;
+
+    /**
+     * Create a new senator.
+     *
+     * @param lastName
+     *            The last name.
+     * @param state
+     *            The state.
+     */
+    public Senator(String lastName, String state) {
+        this.lastName = lastName;
+        this.state = state;
+    }
+
+    /**
+     * Get the last name with the state.
+     *
+     * @return The last name with the state.
+     */
+    public String getLastName() {
+        return lastName + " (" + state + ")";
+    }
+}
@@ -0,0 +1,44 @@
+package com.goodworkalan.stencil;
+
+import static org.testng.Assert.assertEquals;
+
+import org.testng.annotations.Test;
+
+/**
+ * Unit tests for the {@link SizeEstimator} class.
+ *
+ * @author Alan Gutierrez
+ */
+public class SizeEstimatorTest {
+    /** Test the estimate before any size is recorded. */
+    @Test
+    public void empty() {
+        assertEquals(new SizeEstimator().estimate(), 0);
+    }
+
+    /** Test the estimate before the ring of samples is full. */
+    @Test
+    public void partial() {
+        SizeEstimator estimator = new SizeEstimator();
+        estimator.record(10);
+        assertEquals(estimator.estimate(), 10);
+        estimator.record(30);
+        estimator.record(20);
+        assertEquals(estimator.estimate(), 30);
+    }
+
+    /** Test the estimate taken from the most recent sizes once the ring wraps. */
+    @Test
+    public void recent() {
+        SizeEstimator estimator = new SizeEstimator();
+        for (int i = 1; i <= 20; i++) {
+            estimator.record(i * 10);
+        }
+        assertEquals(estimator.estimate(), 190);
+        estimator.record(1000);
+        for (int i = 0; i < 16; i++) {
+            estimator.record(10);
+        }
+        assertEquals(estimator.estimate(), 10);
+    }
+}
@@ -0,0 +1,56 @@
+package com.goodworkalan.stencil;
+
+import java.net.URI;
+
+import com.goodworkalan.ilk.inject.Injector;
+
+/**
+ * An object whose properties render another stencil or fail, used to test
+ * renders that start or abort while another render is running.
+ *
+ * @author Alan Gutierrez
+ */
+public class Speaker {
+    /** The stencil factory. */
+    private final StencilFactory stencils;
+
+    /** The injector of the nested render. */
+    private final Injector injector;
+
+    /** The stencil of the nested render. */
+    private final URI uri;
+
+    /**
+     * Create a new speaker.
+     *
+     * @param stencils
+     *            The stencil factory.
+     * @param injector
+     *            The injector of the nested render.
+     * @param uri
+     *            The stencil of the nested render.
+     */
+    public Speaker(StencilFactory stencils, Injector injector, URI uri) {
+        this.stencils = stencils;
+        this.injector = injector;
+        this.uri = uri;
+    }
+
+    /**
+     * Render the stencil to a string with the same factory.
+     *
+     * @return The rendered stencil.
+     */
+    public String getSpeech() {
+        return stencils.renderToString(injector, uri);
+    }
+
+    /**
+     * Fail.
+     *
+     * @return Never returns.
+     */
+    public String getFailure() {
+        throw new IllegalStateException();
+    }
+}
@@ -4,18 +4,40 @@ package com.goodworkalan.stencil;
 import static org.testng.Assert.assertEquals;
 import static org.testng.Assert.assertTrue;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
 import java.io.Reader;
 import java.io.StringWriter;
+import java.io.Writer;
+import java.net.MalformedURLException;
 import java.net.URI;
+import java.net.URL;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.testng.annotations.Test;
 
 import com.goodworkalan.comfort.io.Files;
+import com.goodworkalan.danger.Danger;
 import com.goodworkalan.ilk.Ilk;
 import com.goodworkalan.ilk.inject.Injector;
 import com.goodworkalan.ilk.inject.InjectorBuilder;
@@ -89,6 +111,46 @@ public class StencilTest {
         return string.toString();
     }
 
+    /**
+     * Create an empty temporary directory that is deleted on exit.
+     * 
+     * @return The directory.
+     * @throws IOException
+     *             For any I/O error.
+     */
+    private File temporary() throws IOException {
+        File directory = File.createTempFile("stencil", "");
+        directory.delete();
+        directory.mkdir();
+        directory.deleteOnExit();
+        return directory;
+    }
+
+    /**
+     * Write the given text to the given file, setting the last modified time
+     * of the file so that the change is seen regardless of the resolution of
+     * the file system clock.
+     * 
+     * @param file
+     *            The file.
+     * @param text
+     *            The text.
+     * @param lastModified
+     *            The last modified time.
+     * @throws IOException
+     *             For any I/O error.
+     */
+    private void write(File file, String text, long lastModified) throws IOException {
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            writer.write(text);
+        } finally {
+            writer.close();
+        }
+        file.setLastModified(lastModified);
+        file.deleteOnExit();
+    }
+
     /** Create an injector around a clique. */
     public Injector clique() {
         InjectorBuilder newInjector = new InjectorBuilder();
@@ -129,6 +191,32 @@ public class StencilTest {
         assertEquals(actual, control);
     }
 
+    /** Test each over arrays, iterators and iterables. */
+    @Test
+    public void eachIterators() throws IOException {
+        InjectorBuilder newInjector = new InjectorBuilder();
+        newInjector.module(new InjectorBuilder() {
+            protected void build() {
+                final Roster roster = new Roster();
+                roster.array = new Person[] { new Person("George", "Washington"), new Person("John", "Adams") };
+                roster.numbers = new int[] { 1, 2, 3 };
+                roster.cursor = Arrays.asList(roster.array).iterator();
+                roster.iterable = new Iterable<Person>() {
+                    public Iterator<Person> iterator() {
+                        return Arrays.asList(new Person("Thomas", "Jefferson"), new Person("James", "Madison")).iterator();
+                    }
+                };
+                instance(roster, ilk(Roster.class), null);
+            }
+        });
+        StencilFactory stencils = new StencilFactory();
+        stencils.setBaseURI(new File(new File("."), "src/test/resources/com/goodworkalan/stencil").getAbsoluteFile().toURI());
+        StringWriter output = new StringWriter();
+        stencils.stencil(newInjector.newInjector(), URI.create("each-iterators.txt"), output);
+        String control = slurp(getClass().getResourceAsStream("each-iterators.out.txt"));
+        assertEquals(output.toString(), control);
+    }
+
     /** Test if. */
     @Test
     public void testIf() throws IOException {
@@ -508,6 +596,475 @@ public class StencilTest {
         assertEquals(actual, control);
     }
     
+    /** Test check dirty in the background. */
+    @Test
+    public void checkDirtyInterval() throws IOException, InterruptedException {
+        File directory = temporary();
+        long lastModified = System.currentTimeMillis() - 60000;
+        write(new File(directory, "a.txt"), "A\n", lastModified);
+        StencilFactory stencils = new StencilFactory();
+        stencils.setBaseURI(directory.toURI());
+        stencils.setCheckDirtyInterval(100, TimeUnit.MILLISECONDS);
+        assertEquals(stencils.getCheckDirtyInterval(), 100L);
+        StringWriter output = new StringWriter();
+        stencils.stencil(new InjectorBuilder().newInjector(), URI.create("a.txt"), output);
+        assertEquals(output.toString(), "A\n");
+        write(new File(directory, "a.txt"), "B\n", lastModified + 10000);
+        awaitCacheSize(stencils, 0);
+        output = new StringWriter();
+        stencils.stencil(new InjectorBuilder().newInjector(), URI.create("a.txt"), output);
+        assertEquals(output.toString(), "B\n");
+        stencils.close();
+        assertEquals(stencils.getCheckDirtyInterval(), 0L);
+        write(new File(directory, "a.txt"), "C\n", lastModified + 20000);
+        // A check still running would evict the page within a few intervals.
+        // A slow machine can only let this pass, never make it fail.
+        Thread.sleep(500);
+        output = new StringWriter();
+        stencils.stencil(new InjectorBuilder().newInjector(), URI.create("a.txt"), output);
+        assertEquals(output.toString(), "B\n");
+    }
+    
+    /**
+     * Wait for the background dirty check of the given factory to leave the
+     * given count of pages in its cache, failing if the count is not reached
+     * within ten seconds.
+     * 
+     * @param stencils
+     *            The stencil factory.
+     * @param size
+     *            The expected count of cached pages.
+     * @throws InterruptedException
+     *             If the wait is interrupted.
+     */
+    private void awaitCacheSize(StencilFactory stencils, int size) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (stencils.getCacheStatistics().getSize() != size && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(stencils.getCacheStatistics().getSize(), size);
+    }
+
+    /** Test that an edit to an imported page reloads the pages importing it. */
+    @Test
+    public void checkDirtyImports() throws IOException, InterruptedException {
+        File directory = temporary();
+        long lastModified = System.currentTimeMillis() - 60000;
+        write(new File(directory, "a.txt"), "@Import(Outer => b.txt)\n@Outer.World()\n", lastModified);
+        write(new File(directory, "b.txt"), "@Stencil(World)\n@Import(Inner => c.txt)\n@Inner.Hello()\n@Stencil\n", lastModified);
+        write(new File(directory, "c.txt"), "@Stencil(Hello)\nHello\n@Stencil\n", lastModified);
+        write(new File(directory, "d.txt"), "Unrelated\n", lastModified);
+        StencilFactory stencils = new StencilFactory();
+        stencils.setBaseURI(directory.toURI());
+        StringWriter output = new StringWriter();
+        stencils.stencil(new InjectorBuilder().newInjector(), URI.create("a.txt"), output);
+        assertEquals(output.toString(), "Hello\n");
+        stencils.stencil(new InjectorBuilder().newInjector(), URI.create("d.txt"), new StringWriter());
+        assertEquals(stencils.getCacheStatistics().getLoadCount(), 4L);
+        stencils.setCheckDirtyInterval(50, TimeUnit.MILLISECONDS);
+        try {
+            // An edit two imports away reloads the whole chain.
+            write(new File(directory, "c.txt"), "@Stencil(Hello)\nGoodbye\n@Stencil\n", lastModified + 10000);
+            awaitCacheSize(stencils, 1);
+            output = new StringWriter();
+            stencils.stencil(new InjectorBuilder().newInjector(), URI.create("a.txt"), output);
+            assertEquals(output.toString(), "Goodbye\n");
+            assertEquals(stencils.getCacheStatistics().getLoadCount(), 7L);
+            // An edit one import away reloads the importer, not the imported.
+            write(new File(directory, "b.txt"), "@Stencil(World)\n@Import(Inner => c.txt)\nSee you, @Inner.Hello()\n@Stencil\n", lastModified + 20000);
+            awaitCacheSize(stencils, 2);
+            output = new StringWriter();
+            stencils.stencil(new InjectorBuilder().newInjector(), URI.create("a.txt"), output);
+            assertEquals(output.toString(), "See you, Goodbye\n");
+            assertEquals(stencils.getCacheStatistics().getLoadCount(), 9L);
+        } finally {
+            stencils.close();
+        }
+    }
+    
+    /** Test cache statistics and eviction. */
+    @Test
+    public void cacheStatistics() throws IOException {
+        StencilFactory stencils = new StencilFactory();
+        File tests = Files.file(new File("."), "src", "test", "resources", "com", "goodworkalan", "stencil");
+        stencils.setBaseURI(tests.getAbsoluteFile().toURI());
+        stencils.stencil(new InjectorBuilder().newInjector(), URI.create("nothing.txt"), new StringWriter());
+        stencils.stencil(new InjectorBuilder().newInjector(), URI.create("nothing.txt"), new StringWriter());
+        CacheStatistics statistics = stencils.getCacheStatistics();
+        assertEquals(statistics.getSize(), 1);
+        assertEquals(statistics.getHitCount(), 1L);
+        assertEquals(statistics.getMissCount(), 1L);
+        assertEquals(statistics.getLoadCount(), 1L);
+        assertEquals(statistics.getEvictionCount(), 0L);
+        stencils.setMaximumCacheWeight(1);
+        assertEquals(stencils.getMaximumCacheWeight(), 1L);
+        StringWriter output = new StringWriter();
+        stencils.stencil(new InjectorBuilder().newInjector(), URI.create("if.out.txt"), output);
+        assertEquals(output.toString(), slurp(getClass().getResourceAsStream("if.out.txt")));
+        statistics = stencils.getCacheStatistics();
+        assertEquals(statistics.getSize(), 1);
+        assertEquals(statistics.getLoadCount(), 2L);
+        assertEquals(statistics.getEvictionCount(), 1L);
+        output = new StringWriter();
+        stencils.stencil(new InjectorBuilder().newInjector(), URI.create("nothing.txt"), output);
+        assertEquals(output.toString(), slurp(getClass().getResourceAsStream("nothing.txt")));
+        assertEquals(stencils.getCacheStatistics().getMissCount(), 3L);
+    }
+    
+    /** Test that a page kept as a soft reference is evicted when dirty. */
+    @Test
+    public void softDirty() throws IOException {
+        File directory = temporary();
+        long lastModified = System.currentTimeMillis() - 60000;
+        write(new File(directory, "a.txt"), "A\n", lastModified);
+        write(new File(directory, "b.txt"), "B\n", lastModified);
+        StencilFactory stencils = new StencilFactory();
+        stencils.setBaseURI(directory.toURI());
+        stencils.setSoftCache(true);
+        stencils.setMaximumCacheWeight(1);
+        StringWriter output = new StringWriter();
+        stencils.stencil(new InjectorBuilder().newInjector(), URI.create("a.txt"), output);
+        assertEquals(output.toString(), "A\n");
+        stencils.stencil(new InjectorBuilder().newInjector(), URI.create("b.txt"), new StringWriter());
+        assertEquals(stencils.getCacheStatistics().getEvictionCount(), 1L);
+        write(new File(directory, "a.txt"), "C\n", lastModified + 10000);
+        stencils.evictDirty();
+        output = new StringWriter();
+        stencils.stencil(new InjectorBuilder().newInjector(), URI.create("a.txt"), output);
+        assertEquals(output.toString(), "C\n");
+    }
+    
+    /** Test precompile. */
+    @Test
+    public void precompile() {
+        StencilFactory stencils = new StencilFactory();
+        File tests = Files.file(new File("."), "src", "test", "resources", "com", "goodworkalan", "stencil");
+        stencils.setBaseURI(tests.getAbsoluteFile().toURI());
+        PrecompileReport report = stencils.precompile(new InjectorBuilder().newInjector(), URI.create("."), "if*.txt");
+        assertTrue(report.isSuccessful());
+        assertEquals(stencils.getCacheStatistics().getSize(), report.getTimings().size());
+    }
+
+    /** Test that a precompile times and reports the stencils that fail. */
+    @Test
+    public void precompileFailure() throws IOException {
+        File directory = temporary();
+        write(new File(directory, "a.txt"), "@Bind(com.goodworkalan.stencil.Person)\n@Get(lastName)\n", System.currentTimeMillis());
+        write(new File(directory, "b.txt"), "@Bind(com.goodworkalan.stencil.Missing)\n@Get(lastName)\n", System.currentTimeMillis());
+        StencilFactory stencils = new StencilFactory();
+        stencils.setBaseURI(directory.toURI());
+        PrecompileReport report = stencils.precompile(person(), URI.create("."), "*.txt");
+        assertTrue(!report.isSuccessful());
+        URI a = directory.toURI().resolve("a.txt");
+        URI b = directory.toURI().resolve("b.txt");
+        assertEquals(report.getFailures().keySet(), Collections.singleton(b));
+        assertEquals(report.getTimings().keySet(), new HashSet<URI>(Arrays.asList(a, b)));
+        assertTrue(report.getTimings().get(b) > 0);
+    }
+
+    /** Test pages that import each other loaded by two threads at once. */
+    @Test
+    public void circularImportThreads() throws Exception {
+        final File tests = Files.file(new File("."), "src", "test", "resources", "com", "goodworkalan", "stencil");
+        final StencilFactory stencils = new StencilFactory();
+        stencils.setBaseURI(tests.getAbsoluteFile().toURI());
+        stencils.setVerify(true);
+        // Hold both loads until each thread has begun loading its page.
+        final CyclicBarrier barrier = new CyclicBarrier(2);
+        final AtomicInteger resolved = new AtomicInteger();
+        stencils.addResolver("cycle", new ResourceResolver() {
+            public URL getURL(Injector injector, URI uri) throws MalformedURLException {
+                if (resolved.incrementAndGet() <= 2) {
+                    try {
+                        barrier.await(10, TimeUnit.SECONDS);
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+                return Files.file(tests, "cycle", uri.getPath().substring(1)).getAbsoluteFile().toURI().toURL();
+            }
+        });
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            List<Future<Object>> futures = new ArrayList<Future<Object>>();
+            for (final String uri : new String[] { "cycle:/a.txt", "cycle:/b.txt" }) {
+                futures.add(executor.submit(new Callable<Object>() {
+                    public Object call() {
+                        stencils.stencil(new InjectorBuilder().newInjector(), URI.create(uri), new StringWriter());
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Object> future : futures) {
+                try {
+                    future.get(10, TimeUnit.SECONDS);
+                    assertTrue(false);
+                } catch (ExecutionException e) {
+                    assertTrue(e.getCause() instanceof Danger);
+                }
+            }
+            final StencilFactory precompiled = new StencilFactory();
+            precompiled.setBaseURI(tests.getAbsoluteFile().toURI());
+            PrecompileReport report = executor.submit(new Callable<PrecompileReport>() {
+                public PrecompileReport call() {
+                    return precompiled.precompile(new InjectorBuilder().newInjector(), URI.create("cycle/"), "*.txt");
+                }
+            }).get(10, TimeUnit.SECONDS);
+            assertEquals(report.getFailures().size(), 2);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+    
+    /** Test the compiled cache. */
+    @Test
+    public void compiledCache() throws IOException {
+        File tests = Files.file(new File("."), "src", "test", "resources", "com", "goodworkalan", "stencil");
+        File file = File.createTempFile("stencil", ".cache");
+        try {
+            StencilFactory stencils = new StencilFactory();
+            stencils.setBaseURI(tests.getAbsoluteFile().toURI());
+            stencils.setVerify(true);
+            stencils.stencil(person(), URI.create("stencil.txt"), new StringWriter());
+            stencils.writeCompiledCache(file);
+            stencils = new StencilFactory();
+            stencils.setBaseURI(tests.getAbsoluteFile().toURI());
+            stencils.setVerify(true);
+            stencils.readCompiledCache(file);
+            StringWriter output = new StringWriter();
+            stencils.stencil(person(), URI.create("stencil.txt"), output);
+            assertEquals(output.toString(), slurp(getClass().getResourceAsStream("stencil.out.txt")));
+        } finally {
+            file.delete();
+        }
+    }
+    
+    /** Test that a page is verified again when a page it imports changes. */
+    @Test
+    public void compiledCacheDependencies() throws IOException {
+        File directory = temporary();
+        File file = new File(directory, "stencil.cache");
+        file.deleteOnExit();
+        long lastModified = System.currentTimeMillis() - 60000;
+        write(new File(directory, "a.txt"), "@Import(B => b.txt)\n@B.Hello()\n", lastModified);
+        write(new File(directory, "b.txt"), "@Stencil(Hello)\n@Bind(com.goodworkalan.stencil.Person)\n@Get(firstName)\n@Stencil\n", lastModified);
+        StencilFactory stencils = new StencilFactory();
+        stencils.setBaseURI(directory.toURI());
+        stencils.setVerify(true);
+        assertTrue(stencils.precompile(person(), URI.create("."), "a.txt").isSuccessful());
+        stencils.writeCompiledCache(file);
+        write(new File(directory, "b.txt"), "@Stencil(Hello)\n@Bind(com.goodworkalan.stencil.Person)\n@Get(missing)\n@Stencil\n", lastModified);
+        stencils = new StencilFactory();
+        stencils.setBaseURI(directory.toURI());
+        stencils.setVerify(true);
+        stencils.readCompiledCache(file);
+        assertEquals(stencils.precompile(person(), URI.create("."), "a.txt").getFailures().size(), 1);
+    }
+
+    /** Test that a truncated or corrupt compiled cache is reported. */
+    @Test
+    public void compiledCacheTruncated() throws IOException {
+        File file = File.createTempFile("stencil", ".cache");
+        try {
+            for (int[] ints : new int[][] { { 0x5374656E }, { 0x5374656E, 2, 1, 1024 }, { 0x5374656E, 2, -1 } }) {
+                DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+                try {
+                    for (int i : ints) {
+                        out.writeInt(i);
+                    }
+                } finally {
+                    out.close();
+                }
+                StencilFactory stencils = new StencilFactory();
+                try {
+                    stencils.readCompiledCache(file);
+                    assertTrue(false);
+                } catch (Danger e) {
+                    assertTrue(e.getCause() instanceof IOException);
+                }
+            }
+        } finally {
+            file.delete();
+        }
+    }
+    
+    /** Test the build time stencil compiler. */
+    @Test
+    public void stencilCompiler() throws IOException {
+        File tests = Files.file(new File("."), "src", "test", "resources", "com", "goodworkalan", "stencil");
+        File file = File.createTempFile("stencil", ".cache");
+        try {
+            assertEquals(StencilCompiler.compile(new String[] { tests.getPath(), "if*.txt", file.getPath() }, System.err), 0);
+            StencilFactory stencils = new StencilFactory();
+            stencils.setBaseURI(tests.getAbsoluteFile().toURI());
+            stencils.readCompiledCache(file.toURI().toURL());
+            StringWriter output = new StringWriter();
+            stencils.stencil(person(), URI.create("if-false.txt"), output);
+            assertEquals(output.toString(), slurp(getClass().getResourceAsStream("if-false.out.txt")));
+        } finally {
+            file.delete();
+        }
+    }
+
+    /** Test identical stencils at different URIs importing relative to their own URI. */
+    @Test
+    public void sharedSource() throws IOException {
+        StencilFactory stencils = new StencilFactory();
+        File tests = Files.file(new File("."), "src", "test", "resources", "com", "goodworkalan", "stencil");
+        stencils.setBaseURI(tests.getAbsoluteFile().toURI());
+        StringWriter output = new StringWriter();
+        stencils.stencil(person(), URI.create("tenant/a/stencil.txt"), output);
+        assertEquals(output.toString(), "Hello, World!\n");
+        output = new StringWriter();
+        stencils.stencil(person(), URI.create("tenant/b/stencil.txt"), output);
+        assertEquals(output.toString(), "Hello there, World.\n");
+    }
+
+    /** Test that text shared by the pages of two tenants is weighed once. */
+    @Test
+    public void sharedSourceWeight() throws IOException {
+        File tests = Files.file(new File("."), "src", "test", "resources", "com", "goodworkalan", "stencil");
+        StencilFactory utility = new StencilFactory();
+        utility.setBaseURI(tests.getAbsoluteFile().toURI());
+        utility.stencil(person(), URI.create("tenant/b/utility.txt"), new StringWriter());
+        long utilityWeight = utility.getCacheStatistics().getWeight();
+        assertTrue(utilityWeight > 0);
+        StencilFactory stencils = new StencilFactory();
+        stencils.setBaseURI(tests.getAbsoluteFile().toURI());
+        stencils.stencil(person(), URI.create("tenant/a/stencil.txt"), new StringWriter());
+        CacheStatistics statistics = stencils.getCacheStatistics();
+        assertEquals(statistics.getSize(), 2);
+        long weight = statistics.getWeight();
+        stencils.stencil(person(), URI.create("tenant/b/stencil.txt"), new StringWriter());
+        statistics = stencils.getCacheStatistics();
+        assertEquals(statistics.getSize(), 4);
+        assertEquals(statistics.getWeight(), weight + utilityWeight);
+    }
+
+    /** Test pages that share text but resolve different escape tables. */
+    @Test
+    public void sharedSourceEscapers() throws IOException {
+        StencilFactory stencils = new StencilFactory();
+        final File tests = Files.file(new File("."), "src", "test", "resources", "com", "goodworkalan", "stencil");
+        stencils.setBaseURI(tests.getAbsoluteFile().toURI());
+        stencils.addResolver("tenant", new ResourceResolver() {
+            public URL getURL(Injector injector, URI uri) throws MalformedURLException {
+                Ilk<Person> ilk = new Ilk<Person>(Person.class);
+                Person person = injector.instance(ilk.key, null).cast(ilk);
+                return Files.file(tests, "tenant", person.getLastName(), uri.getSchemeSpecificPart()).getAbsoluteFile().toURI().toURL();
+            }
+        });
+        StringWriter output = new StringWriter();
+        stencils.stencil(tenant("a"), URI.create("tenant/a/escape.txt"), output);
+        assertEquals(output.toString(), "([George])\n");
+        output = new StringWriter();
+        stencils.stencil(tenant("b"), URI.create("tenant/b/escape.txt"), output);
+        assertEquals(output.toString(), "({George})\n");
+    }
+
+    /** Get an injector with a person named for the given tenant. */
+    private Injector tenant(final String tenant) {
+        InjectorBuilder newInjector = new InjectorBuilder();
+        newInjector.module(new InjectorBuilder() {
+            protected void build() {
+                instance(new Person("<George>", tenant), ilk(Person.class), null);
+            }
+        });
+        return newInjector.newInjector();
+    }
+
+    /** Test writing bytes to an output stream. */
+    @Test
+    public void bytes() throws IOException {
+        InjectorBuilder newInjector = new InjectorBuilder();
+        newInjector.module(new InjectorBuilder() {
+            protected void build() {
+                instance(new Person("This <is not> really & a name.", "Washington"), ilk(Person.class), null);
+            }
+        });
+        StencilFactory stencils = new StencilFactory();
+        File tests = Files.file(new File("."), "src", "test", "resources", "com", "goodworkalan", "stencil");
+        stencils.setBaseURI(tests.getAbsoluteFile().toURI());
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        stencils.stencil(newInjector.newInjector(), URI.create("entities.txt"), output, Charset.forName("UTF-8"));
+        String control = slurp(getClass().getResourceAsStream("entities.out.txt"));
+        assertEquals(new String(output.toByteArray(), "UTF-8"), control);
+    }
+
+    /** Test writing a page with non-ASCII text in several character sets. */
+    @Test
+    public void bytesCharsets() throws IOException {
+        File directory = temporary();
+        write(new File(directory, "a.txt"), "@Bind(com.goodworkalan.stencil.Person)\nGr\u00fc\u00dfe, \u2603 @Get(lastName) \ud834\udd1e!\nplain \u00fc\nlines \u00e9 @Get(lastName)\n", System.currentTimeMillis());
+        StencilFactory stencils = new StencilFactory();
+        stencils.setBaseURI(directory.toURI());
+        StringWriter control = new StringWriter();
+        stencils.stencil(person(), URI.create("a.txt"), control);
+        for (String name : new String[] { "UTF-8", "ISO-8859-1", "UTF-16BE", "UTF-8", "ISO-8859-1" }) {
+            Charset charset = Charset.forName(name);
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            stencils.stencil(person(), URI.create("a.txt"), output, charset);
+            assertEquals(new String(output.toByteArray(), name), new String(control.toString().getBytes(name), name));
+        }
+        try {
+            stencils.stencil(person(), URI.create("a.txt"), new ByteArrayOutputStream(), Charset.forName("UTF-16"));
+            assertTrue(false);
+        } catch (Danger e) {
+        }
+    }
+
+    /** Test writing bytes through small pooled buffers held to the end of the render. */
+    @Test
+    public void buffers() throws IOException {
+        StencilFactory stencils = new StencilFactory();
+        File tests = Files.file(new File("."), "src", "test", "resources", "com", "goodworkalan", "stencil");
+        stencils.setBaseURI(tests.getAbsoluteFile().toURI());
+        stencils.setBufferSize(16);
+        stencils.setBufferCount(2);
+        stencils.setFlushPolicy(FlushPolicy.END);
+        assertEquals(stencils.getBufferSize(), 16);
+        assertEquals(stencils.getBufferCount(), 2);
+        assertEquals(stencils.getFlushPolicy(), FlushPolicy.END);
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        stencils.stencil(person(), URI.create("stencil.txt"), output, Charset.forName("UTF-8"));
+        String control = slurp(getClass().getResourceAsStream("stencil.out.txt"));
+        assertEquals(new String(output.toByteArray(), "UTF-8"), control);
+    }
+
+    /** Test the flush directive and the flush after the first stencil. */
+    @Test
+    public void flush() throws IOException {
+        StencilFactory stencils = new StencilFactory();
+        File tests = Files.file(new File("."), "src", "test", "resources", "com", "goodworkalan", "stencil");
+        stencils.setBaseURI(tests.getAbsoluteFile().toURI());
+        final List<String> flushes = new ArrayList<String>();
+        StringWriter output = new StringWriter() {
+            public void flush() {
+                flushes.add(toString());
+            }
+        };
+        stencils.stencil(new InjectorBuilder().newInjector(), URI.create("flush.txt"), output);
+        assertEquals(output.toString(), "Before\nAfter\n");
+        assertEquals(flushes, Collections.singletonList("Before\n"));
+        flushes.clear();
+        stencils.setFlushAfterFirstStencil(true);
+        assertTrue(stencils.isFlushAfterFirstStencil());
+        output.getBuffer().setLength(0);
+        stencils.stencil(person(), URI.create("stencil.txt"), output);
+        assertEquals(flushes, Collections.singletonList("Hello, World!\n"));
+    }
+
+    /** Test rendering to a string with a buffer sized by recent renders. */
+    @Test
+    public void renderToString() throws IOException {
+        StencilFactory stencils = new StencilFactory();
+        File tests = Files.file(new File("."), "src", "test", "resources", "com", "goodworkalan", "stencil");
+        stencils.setBaseURI(tests.getAbsoluteFile().toURI());
+        String control = slurp(getClass().getResourceAsStream("stencil.out.txt"));
+        assertEquals(stencils.renderToString(person(), URI.create("stencil.txt")), control);
+        assertEquals(stencils.renderToString(person(), URI.create("stencil.txt")), control);
+    }
+
     /** Get an injector with a person with a null first name. */
     private Injector person() {
         InjectorBuilder newInjector = new InjectorBuilder();
@@ -553,6 +1110,102 @@ public class StencilTest {
     public void bindings() throws IOException {
         test(people(), "bindings.txt", "bindings.out.txt");
     }
+
+    /** Test verifying all branches of a stencil when it is loaded. */
+    @Test
+    public void verify() throws IOException {
+        StencilFactory stencils = new StencilFactory();
+        stencils.setBaseURI(new File(new File("."), "src/test/resources/com/goodworkalan/stencil").getAbsoluteFile().toURI());
+        stencils.setVerify(true);
+        assertTrue(stencils.isVerify());
+        StringWriter output = new StringWriter();
+        stencils.stencil(clique(), URI.create("each-indent.txt"), output);
+        String actual = output.toString();
+        String control = slurp(getClass().getResourceAsStream("each-indent.out.txt"));
+        assertEquals(actual, control);
+    }
+
+    /** Test runs of plain lines between commands, blank lines and comments. */
+    @Test
+    public void plainRuns() throws IOException {
+        File directory = temporary();
+        write(new File(directory, "a.txt"), "@Bind(com.goodworkalan.stencil.Person)\nOne\nTwo\n\nThree @Get(lastName)\nFour\n@ Comment\nFive\n@If(firstName)\nSkipped\nSkipped\n@If\nSix\n\nSeven\n", System.currentTimeMillis());
+        StencilFactory stencils = new StencilFactory();
+        stencils.setBaseURI(directory.toURI());
+        String expected = "One\nTwo\n\nThree Washington\nFour\nFive\nSix\n\nSeven\n";
+        assertEquals(stencils.renderToString(person(), URI.create("a.txt")), expected);
+        assertEquals(stencils.renderToString(person(), URI.create("a.txt")), expected);
+    }
+
+    /** Test pages that evaluate the same path against two context types. */
+    @Test
+    public void accessorContexts() throws IOException {
+        File directory = temporary();
+        write(new File(directory, "a.txt"), "@Bind(com.goodworkalan.stencil.Person)\nName: @Get(lastName)\n", System.currentTimeMillis());
+        write(new File(directory, "b.txt"), "@Bind(com.goodworkalan.stencil.Senator)\nName: @Get(lastName)\n", System.currentTimeMillis());
+        InjectorBuilder newInjector = new InjectorBuilder();
+        newInjector.module(new InjectorBuilder() {
+            protected void build() {
+                instance(new Senator("Byrd", "WV"), ilk(Senator.class), null);
+            }
+        });
+        Injector senator = newInjector.newInjector();
+        StencilFactory stencils = new StencilFactory();
+        stencils.setBaseURI(directory.toURI());
+        for (int i = 0; i < 2; i++) {
+            assertEquals(stencils.renderToString(person(), URI.create("a.txt")), "Name: Washington\n");
+            assertEquals(stencils.renderToString(senator, URI.create("b.txt")), "Name: Byrd (WV)\n");
+        }
+    }
+
+    /**
+     * Test that the levels reused by the renders of a thread are left clean
+     * by a render that starts while another is running and by a render that
+     * fails.
+     */
+    @Test
+    public void nestedRender() throws IOException {
+        File directory = temporary();
+        write(new File(directory, "speech.txt"), "@Bind(com.goodworkalan.stencil.Person)\n@If(lastName)\nHello, @Get(lastName)!\n@If\n", System.currentTimeMillis());
+        write(new File(directory, "outer.txt"), "@Bind(com.goodworkalan.stencil.Speaker)\n@If(speech)\nBefore\n@Get(speech)After\n@If\n", System.currentTimeMillis());
+        write(new File(directory, "failure.txt"), "@Bind(com.goodworkalan.stencil.Speaker)\n@If(speech)\n@Get(failure)\n@If\n", System.currentTimeMillis());
+        final StencilFactory stencils = new StencilFactory();
+        stencils.setBaseURI(directory.toURI());
+        InjectorBuilder newInjector = new InjectorBuilder();
+        newInjector.module(new InjectorBuilder() {
+            protected void build() {
+                instance(new Speaker(stencils, person(), URI.create("speech.txt")), ilk(Speaker.class), null);
+            }
+        });
+        Injector speaker = newInjector.newInjector();
+        assertEquals(stencils.renderToString(speaker, URI.create("outer.txt")), "Before\nHello, Washington!\nAfter\n");
+        try {
+            stencils.renderToString(speaker, URI.create("failure.txt"));
+            assertTrue(false);
+        } catch (Danger e) {
+        }
+        assertEquals(stencils.renderToString(person(), URI.create("speech.txt")), "Hello, Washington!\n");
+        assertEquals(stencils.renderToString(speaker, URI.create("outer.txt")), "Before\nHello, Washington!\nAfter\n");
+    }
+
+    /** Test decoding stencils with a character set other than UTF-8. */
+    @Test
+    public void charset() throws IOException {
+        File directory = temporary();
+        File file = new File(directory, "a.txt");
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write("@Bind(com.goodworkalan.stencil.Person)\r\nGr\u00fc\u00dfe, @Get(lastName) \u00e9t\u00e9\r\nPlain\rLast \u00ff\n".getBytes("ISO-8859-1"));
+        } finally {
+            out.close();
+        }
+        file.deleteOnExit();
+        StencilFactory stencils = new StencilFactory();
+        stencils.setBaseURI(directory.toURI());
+        stencils.setCharset(Charset.forName("ISO-8859-1"));
+        assertEquals(stencils.getCharset(), Charset.forName("ISO-8859-1"));
+        assertEquals(stencils.renderToString(person(), URI.create("a.txt")), "Gr\u00fc\u00dfe, Washington \u00e9t\u00e9\nPlain\nLast \u00ff\n");
+    }
 }
 
 